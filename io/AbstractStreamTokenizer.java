@@ -101,7 +101,13 @@ public abstract class AbstractStreamTokenizer
   abstract void readFollowingChar () throws IOException;
 
   abstract void readDecimal () throws IOException;
- 
+
+  /**
+   * Scans the next token from the input, ignoring any pushed back or
+   * queued token, and returns its type.
+   */
+  abstract int scanToken () throws IOException;
+
   /* ======================================================================= */
   /**
    * The following are public constants denoting recognized <i>token</i>
@@ -285,35 +291,105 @@ public abstract class AbstractStreamTokenizer
       return tokenEnd;
     }
 
+  /**
+   * The source positions of the characters starting and ending the current
+   * and previous tokens, when reading from an <tt>IncludeReader</tt>, or -1
+   * (see <tt>IncludeReader.getSourcePosition()</tt>).
+   */
+  long tokenStartPosition = -1;
+  long tokenEndPosition = -1;
+  long previousTokenStartPosition = -1;
+  long previousTokenEndPosition = -1;
+
+  /**
+   * Returns the source position of the start of the token at hand when
+   * reading from an <tt>IncludeReader</tt>, or -1. A client may keep this
+   * instead of <tt>tokenStart()</tt>, and get the location it stands for
+   * from the reader's source map when needed (see <tt>getSourceMap()</tt>).
+   */
+  public final long tokenStartPosition ()
+    {
+      if (pushedBack)
+	return previousTokenStartPosition;
+      return tokenStartPosition;
+    }
+
+  /**
+   * Returns the source position of the end of the token at hand when
+   * reading from an <tt>IncludeReader</tt>, or -1.
+   */
+  public final long tokenEndPosition ()
+    {
+      if (pushedBack)
+	return previousTokenEndPosition;
+      return tokenEndPosition;
+    }
+
+  /**
+   * Returns the source map of the underlying reader if it is an
+   * <tt>IncludeReader</tt> mapping its source positions, or <tt>null</tt>.
+   */
+  public final SourceMap getSourceMap ()
+    {
+      return reader instanceof IncludeReader ? ((IncludeReader)reader).getSourceMap() : null;
+    }
+
+  /**
+   * The file, line, and column of the start and end of the current token,
+   * as also recorded in <tt>tokenStart</tt> and <tt>tokenEnd</tt>. These are
+   * what gets saved when tokens are recorded (see <tt>TokenCodec</tt>).
+   */
+  String tokenStartFile;
+  int tokenStartLine;
+  int tokenStartCol;
+  String tokenEndFile;
+  int tokenEndLine;
+  int tokenEndCol;
+
   protected Location currentCharLocation ()
     {
+      locateCurrentChar();
       return new Location(currentCharFile,currentCharLine,currentCharCol);
     }
 
   protected void setStartLocation ()
     {
       previousTokenStart = tokenStart;
+      previousTokenStartPosition = tokenStartPosition;
       tokenStart = currentCharLocation();
+      tokenStartPosition = currentCharPosition;
+      tokenStartFile = currentCharFile;
+      tokenStartLine = currentCharLine;
+      tokenStartCol  = currentCharCol;
     }
 
   protected void setEndLocation ()
     {
       previousTokenEnd = tokenEnd;
+      previousTokenEndPosition = tokenEndPosition;
       tokenEnd = currentCharLocation();
+      tokenEndPosition = currentCharPosition;
+      tokenEndFile = currentCharFile;
+      tokenEndLine = currentCharLine;
+      tokenEndCol  = currentCharCol;
     }
 
   protected void resetStartLocation ()
     {
-      tokenStart.setFile(currentCharFile);
-      tokenStart.setLine(currentCharLine);
-      tokenStart.setColumn(currentCharCol);
+      locateCurrentChar();
+      tokenStart.setFile(tokenStartFile = currentCharFile);
+      tokenStart.setLine(tokenStartLine = currentCharLine);
+      tokenStart.setColumn(tokenStartCol = currentCharCol);
+      tokenStartPosition = currentCharPosition;
     }
 
   protected void resetEndLocation ()
     {
-      tokenEnd.setFile(currentCharFile);
-      tokenEnd.setLine(currentCharLine);
-      tokenEnd.setColumn(currentCharCol);
+      locateCurrentChar();
+      tokenEnd.setFile(tokenEndFile = currentCharFile);
+      tokenEnd.setLine(tokenEndLine = currentCharLine);
+      tokenEnd.setColumn(tokenEndCol = currentCharCol);
+      tokenEndPosition = currentCharPosition;
     }
 
   /**
@@ -321,6 +397,7 @@ public abstract class AbstractStreamTokenizer
    */
   public final int getLineNumber ()
     {
+      locateCurrentChar();
       return currentCharLine;
     }
 
@@ -498,7 +575,247 @@ public abstract class AbstractStreamTokenizer
     {
       if (ttype != TT_NOTHING) pushedBack = true;
     }
-  
+
+  /* ======================================================================= */
+
+  /**
+   * Returns the type of the <tt>k</tt>-th token to be returned by
+   * <tt>nextToken()</tt> without consuming it (<tt>peekType(1)</tt> is the
+   * type of the very next token). Tokens scanned ahead this way are kept
+   * in a queue and are not scanned again when eventually consumed. Peeking
+   * past the end of file returns <tt>TT_EOF</tt>.
+   * <p>
+   * <b>NB:</b> since peeking advances the input, the character-level state
+   * (<i>e.g.</i>, <tt>peek()</tt>, <tt>lineno()</tt>) reflects the position
+   * after the last token peeked, not after the current token.
+   *
+   * @throws    IllegalArgumentException (if <tt>k</tt> is less than 1)
+   * @throws    IOException (if an I/O error occurs)
+   */
+  public final int peekType (int k) throws IOException
+    {
+      if (pushedBack && k == 1)
+        return ttype;
+
+      return queuedToken(pushedBack ? k-1 : k).ttype;
+    }
+
+  /**
+   * Returns the string value of the <tt>k</tt>-th token to be returned by
+   * <tt>nextToken()</tt> without consuming it, or <tt>null</tt> if it is
+   * neither a word nor a quoted word.
+   *
+   * @see #peekType(int)
+   */
+  public final String peekSval (int k) throws IOException
+    {
+      if (pushedBack && k == 1)
+        return sval;
+
+      return queuedToken(pushedBack ? k-1 : k).sval;
+    }
+
+  /**
+   * Returns the numeric value of the <tt>k</tt>-th token to be returned by
+   * <tt>nextToken()</tt> without consuming it, or <tt>NaN</tt> if it is
+   * not a number.
+   *
+   * @see #peekType(int)
+   */
+  public final double peekNval (int k) throws IOException
+    {
+      if (pushedBack && k == 1)
+        return nval;
+
+      return queuedToken(pushedBack ? k-1 : k).nval;
+    }
+
+  /**
+   * The token queue filled by the <tt>peek...(int)</tt> methods. It is a
+   * ring of preallocated token states whose capacity is always a power of
+   * 2, so that queuing and dequeuing a token allocates nothing.
+   */
+  private TokenState[] tokenQueue = newTokenQueue(4);
+
+  private int queueHead = 0;
+  private int queueSize = 0;
+
+  /**
+   * Where the current token's state is saved while scanning ahead.
+   */
+  private final TokenState savedToken = new TokenState();
+
+  /**
+   * Returns <tt>true</tt> iff there are tokens scanned ahead waiting to be
+   * returned by <tt>nextToken()</tt>.
+   */
+  protected final boolean hasQueuedTokens ()
+    {
+      return queueSize > 0;
+    }
+
+  /**
+   * Returns the <tt>k</tt>-th queued token, scanning as many tokens as
+   * needed to get it. If the end of file is reached first, the queued
+   * <tt>TT_EOF</tt> token is returned.
+   */
+  private final TokenState queuedToken (int k) throws IOException
+    {
+      if (k < 1)
+        throw new IllegalArgumentException("Bad token lookahead: "+k);
+
+      while (queueSize < k)
+        {
+          if (queueSize > 0)
+            {
+              TokenState last = tokenQueue[(queueHead+queueSize-1) & (tokenQueue.length-1)];
+              if (last.ttype == TT_EOF)
+                return last;
+            }
+
+          enqueueToken();
+        }
+
+      return tokenQueue[(queueHead+k-1) & (tokenQueue.length-1)];
+    }
+
+  /**
+   * Scans one more token at the end of the queue, leaving the current
+   * token's state untouched.
+   */
+  private final void enqueueToken () throws IOException
+    {
+      Location prevStart = previousTokenStart;
+      Location prevEnd   = previousTokenEnd;
+      long prevStartPosition = previousTokenStartPosition;
+      long prevEndPosition   = previousTokenEndPosition;
+
+      savedToken.save(this);
+
+      scanNextToken();
+
+      if (queueSize == tokenQueue.length)
+        growTokenQueue();
+
+      tokenQueue[(queueHead+queueSize) & (tokenQueue.length-1)].save(this);
+      queueSize++;
+
+      savedToken.restore(this);
+      savedToken.clear();
+
+      previousTokenStart = prevStart;
+      previousTokenEnd   = prevEnd;
+      previousTokenStartPosition = prevStartPosition;
+      previousTokenEndPosition   = prevEndPosition;
+    }
+
+  /**
+   * Makes the token at the head of the queue the current token and
+   * returns its type.
+   */
+  protected final int dequeueToken ()
+    {
+      TokenState token = tokenQueue[queueHead];
+
+      previousTokenStart = tokenStart;
+      previousTokenEnd   = tokenEnd;
+      previousTokenStartPosition = tokenStartPosition;
+      previousTokenEndPosition   = tokenEndPosition;
+
+      token.restore(this);
+      token.clear();
+
+      queueHead = (queueHead+1) & (tokenQueue.length-1);
+      queueSize--;
+
+      return ttype;
+    }
+
+  /**
+   * Doubles the capacity of the token queue, unwrapping it to start at 0.
+   */
+  private final void growTokenQueue ()
+    {
+      TokenState[] queue = new TokenState[2*tokenQueue.length];
+
+      for (int n=0; n<queue.length; n++)
+        queue[n] = n < queueSize
+                 ? tokenQueue[(queueHead+n) & (tokenQueue.length-1)]
+                 : new TokenState();
+
+      tokenQueue = queue;
+      queueHead = 0;
+    }
+
+  private static final TokenState[] newTokenQueue (int capacity)
+    {
+      TokenState[] queue = new TokenState[capacity];
+      for (int i=0; i<capacity; i++) queue[i] = new TokenState();
+      return queue;
+    }
+
+  /* ======================================================================= */
+
+  /**
+   * The metrics recording what this tokenizer does, if any.
+   */
+  TokenizerMetrics metrics;
+
+  /**
+   * The counts accumulated since the latest token was recorded in the
+   * metrics. They are maintained only if <tt>TokenizerMetrics.ENABLED</tt>.
+   */
+  long charCount;
+  long commentCharCount;
+  long symbolHitCount;
+  long symbolMissCount;
+
+  /**
+   * Sets the metrics recording what this tokenizer does from now on (see
+   * <tt>TokenizerMetrics</tt>), or stops recording if <tt>metrics</tt> is
+   * <tt>null</tt>. If this tokenizer reads from an <tt>IncludeReader</tt>,
+   * the reader's inclusions are recorded in the same metrics.
+   */
+  public void setMetrics (TokenizerMetrics metrics)
+    {
+      this.metrics = metrics;
+      charCount = commentCharCount = symbolHitCount = symbolMissCount = 0;
+
+      if (reader instanceof IncludeReader)
+        ((IncludeReader)reader).setMetrics(metrics);
+    }
+
+  /**
+   * Returns the metrics recording what this tokenizer does, or <tt>null</tt>
+   * if there are none.
+   */
+  public final TokenizerMetrics getMetrics ()
+    {
+      return metrics;
+    }
+
+  /**
+   * Scans the next token from the input, recording it in the metrics if
+   * instrumentation is on, and returns its type.
+   */
+  final int scanNextToken () throws IOException
+    {
+      if (TokenizerMetrics.ENABLED && metrics != null)
+        return metrics.scan(this);
+
+      return scanToken();
+    }
+
+  /**
+   * Adds the counts accumulated since the latest token to the specified
+   * metrics and resets them.
+   */
+  final void flushCounts (TokenizerMetrics metrics)
+    {
+      metrics.add(charCount,commentCharCount,symbolHitCount,symbolMissCount);
+      charCount = commentCharCount = symbolHitCount = symbolMissCount = 0;
+    }
+
   /* ======================================================================= */
 
   /**
@@ -858,6 +1175,38 @@ public abstract class AbstractStreamTokenizer
   protected String currentCharFile;
   protected String followingCharFile;
 
+  /**
+   * When reading from an <tt>IncludeReader</tt>, the line and column numbers
+   * of the current and following characters are only computed when needed
+   * (see <tt>locateCurrentChar()</tt>), from the line index of the source
+   * they were read from and their positions in it.
+   */
+  LineIndex currentCharLines;
+  LineIndex followingCharLines;
+
+  int currentCharOffset;
+  int followingCharOffset;
+
+  /**
+   * The source positions of the current and following characters when
+   * reading from an <tt>IncludeReader</tt>, or -1.
+   */
+  long currentCharPosition = -1;
+  long followingCharPosition = -1;
+
+  /**
+   * Sets the line and column numbers of the current character if they are
+   * to be computed from its position.
+   */
+  protected final void locateCurrentChar ()
+    {
+      if (currentCharLines != null)
+        {
+          currentCharLine = currentCharLines.line(currentCharOffset);
+          currentCharCol  = currentCharLines.column(currentCharOffset);
+        }
+    }
+
   protected StringBuilder wordBuffer;
   protected int leftQuote;
   protected int rightQuote;
@@ -966,6 +1315,73 @@ public abstract class AbstractStreamTokenizer
       slashSlashComments (true);
     }
 
+  /**
+   * Returns a fingerprint of the syntax configuration of this tokenizer.
+   * Two tokenizers of the same class that have the same fingerprint are
+   * expected to tokenize any given input the same way.
+   *
+   * @see TokenCache
+   */
+  public long syntaxFingerprint ()
+    {
+      long hash = fingerprint(FINGERPRINT_BASIS,getClass().getName());
+
+      for (int c = 0; c < charInfo.length; c++)
+        {
+          hash = fingerprint(hash,charInfo[c].type);
+          hash = fingerprint(hash,charInfo[c].right);
+          hash = fingerprint(hash,charInfo[c].escape);
+        }
+
+      for (int i = 0; i < typePrecedence.length; i++)
+        hash = fingerprint(hash,typePrecedence[i]);
+
+      hash = fingerprint(hash,(parsingNumbers     ? 1 : 0)
+                            | (parsingNonDecimals ? 2 : 0)
+                            | (parsingDigitsOnly  ? 4 : 0)
+                            | (eolIsSignificant   ? 8 : 0)
+                            | (spaceIsSignificant ? 16 : 0));
+
+      return fingerprint(hash,commentSyntax());
+    }
+
+  /**
+   * Returns a string describing the comment conventions in effect. This
+   * is used as part of the syntax fingerprint, and must be redefined by
+   * subclasses that recognize comments in their own way.
+   */
+  String commentSyntax ()
+    {
+      return "";
+    }
+
+  private static final long FINGERPRINT_BASIS = 0xcbf29ce484222325L;
+  private static final long FINGERPRINT_PRIME = 0x100000001b3L;
+
+  /**
+   * Folds the specified value into the specified (FNV-1a) hash.
+   */
+  private static final long fingerprint (long hash, int value)
+    {
+      for (int i = 0; i < 4; i++)
+        {
+          hash ^= (value >>> 8*i) & 0xff;
+          hash *= FINGERPRINT_PRIME;
+        }
+      return hash;
+    }
+
+  private static final long fingerprint (long hash, String value)
+    {
+      if (value == null)
+        return fingerprint(hash,-1);
+
+      for (int i = 0; i < value.length(); i++)
+        hash = fingerprint(hash,value.charAt(i));
+
+      return fingerprint(hash,value.length());
+    }
+
   /**
    * <a name="currentType()"></a> Returns the type of the current character. If
    * numbers are parsed, the three characters '<tt>.</tt>', '<tt>+</tt>', and
@@ -1066,6 +1482,19 @@ public abstract class AbstractStreamTokenizer
         }
     }
 
+  /**
+   * Records the location of the following character, which has just been
+   * read from the specified <tt>IncludeReader</tt>. This is where the reader
+   * is now, unless the character was read ahead of it.
+   */
+  void locateFollowingChar (IncludeReader includeReader)
+    {
+      followingCharLines  = includeReader.lineIndex();
+      followingCharOffset = includeReader.position();
+      followingCharFile   = includeReader.getFile();
+      followingCharPosition = includeReader.getSourcePosition();
+    }
+
   /**
    * Reads the next character and keeps track of line numbers and
    * file names.
@@ -1074,18 +1503,18 @@ public abstract class AbstractStreamTokenizer
     {
       previousChar = currentChar;
 
-      currentChar     = followingChar;
-      currentCharLine = followingCharLine;
-      currentCharCol  = followingCharCol;
-      currentCharFile = followingCharFile;
+      currentChar       = followingChar;
+      currentCharLine   = followingCharLine;
+      currentCharCol    = followingCharCol;
+      currentCharFile   = followingCharFile;
+      currentCharLines  = followingCharLines;
+      currentCharOffset = followingCharOffset;
+      currentCharPosition = followingCharPosition;
 
       readFollowingChar();
 
       if (reader instanceof IncludeReader)
-        {
-          followingCharLine = ((IncludeReader)reader).getLineNumber();
-          followingCharCol = ((IncludeReader)reader).getColumnNumber();
-        }
+        locateFollowingChar((IncludeReader)reader);
       else
         if (followingChar == IO.EOL)
           {
@@ -1093,9 +1522,6 @@ public abstract class AbstractStreamTokenizer
             followingCharCol = 0;
           }
 
-      if (reader instanceof IncludeReader)
-        followingCharFile = ((IncludeReader)reader).getFile();
-
       // // The following two statements are for debugging purposes:
       // if (Debug.flagIsOn())
       // 	{
@@ -1112,6 +1538,8 @@ public abstract class AbstractStreamTokenizer
 
   protected final void skipLine () throws IOException
     {
+      long start = charCount;
+
       // if (Debug.flagIsOn())
       // 	System.out.println("Skipping line "+
       // 			   (currentCharFile != null
@@ -1131,6 +1559,9 @@ public abstract class AbstractStreamTokenizer
 
       // if (Debug.flagIsOn())
       // 	System.out.println("The following char after skipping the line is "+Misc.pform(followingChar));
+
+      if (TokenizerMetrics.ENABLED)
+        commentCharCount += charCount - start;
     }
 
   /* ======================================================================= */
@@ -1138,14 +1569,62 @@ public abstract class AbstractStreamTokenizer
 
   protected final void readWord () throws IOException
     {
-      wordBuffer = new StringBuilder();
+      clearWordBuffer();
       wordBuffer.append((char)currentChar);
       while (isWordChar(followingChar))
         {
           wordBuffer.append((char)followingChar);
           nextChar();
         }
-      sval = wordBuffer.toString().intern();      
+      sval = symbol(wordBuffer);
+    }
+
+  /**
+   * Empties the word buffer, creating it if needed.
+   */
+  private final void clearWordBuffer ()
+    {
+      if (wordBuffer == null)
+        wordBuffer = new StringBuilder();
+      else
+        wordBuffer.setLength(0);
+    }
+
+  /**
+   * The size of the symbol table (a power of 2).
+   */
+  private final static int SYMBOL_TABLE_SIZE = 1024;
+
+  /**
+   * The symbol table: the latest words read, indexed by their hash codes.
+   * Reading a word found in this table neither builds nor interns a new
+   * string.
+   */
+  private final String[] symbols = new String[SYMBOL_TABLE_SIZE];
+
+  /**
+   * Returns the interned string equal to the specified characters, taking
+   * it from the symbol table if it is there, and entering it otherwise.
+   */
+  private final String symbol (StringBuilder chars)
+    {
+      int length = chars.length();
+      int hash = 0;
+
+      for (int i = 0; i < length; i++)
+        hash = 31*hash + chars.charAt(i);
+
+      int index = (hash ^ (hash >>> 16)) & (SYMBOL_TABLE_SIZE-1);
+      String symbol = symbols[index];
+
+      if (symbol != null && symbol.length() == length && symbol.contentEquals(chars))
+        {
+          if (TokenizerMetrics.ENABLED) symbolHitCount++;
+          return symbol;
+        }
+
+      if (TokenizerMetrics.ENABLED) symbolMissCount++;
+      return symbols[index] = chars.toString().intern();
     }
 
   /**
@@ -1330,7 +1809,15 @@ public abstract class AbstractStreamTokenizer
 
   protected final void readQuotedWord () throws IOException
     {
-      wordBuffer = new StringBuilder();
+      // the line is only computed if the event is recorded:
+      LineIndex lines = currentCharLines;
+      int offset = currentCharOffset;
+      int line = currentCharLine;
+
+      IOEvents.QuotedString event = new IOEvents.QuotedString();
+      event.begin();
+
+      clearWordBuffer();
       for (;;)
         {
           nextChar();
@@ -1342,7 +1829,9 @@ public abstract class AbstractStreamTokenizer
 
           wordBuffer.append((char)currentChar);
         }
-      sval = wordBuffer.toString().intern();
+      sval = symbol(wordBuffer);
+
+      event.record(currentCharFile,lines,offset,line,wordBuffer.length());
     }
 
   protected final void readEscapedChar () throws IOException
@@ -1449,4 +1938,77 @@ public abstract class AbstractStreamTokenizer
 
       CharInfo () {};
     }
+
+  /**
+   * This holds the complete state of a token, so that it may be set aside
+   * and reinstated as the current token (see <tt>peekType(int)</tt>).
+   */
+  static private final class TokenState
+    {
+      int ttype;
+      String sval;
+      double nval;
+      boolean isInteger;
+      int leftQuote;
+      int rightQuote;
+      Location start;
+      Location end;
+      String startFile;
+      int startLine;
+      int startCol;
+      String endFile;
+      int endLine;
+      int endCol;
+      long startPosition;
+      long endPosition;
+
+      final void save (AbstractStreamTokenizer t)
+        {
+          ttype      = t.ttype;
+          sval       = t.sval;
+          nval       = t.nval;
+          isInteger  = t.isInteger;
+          leftQuote  = t.leftQuote;
+          rightQuote = t.rightQuote;
+          start      = t.tokenStart;
+          end        = t.tokenEnd;
+          startFile  = t.tokenStartFile;
+          startLine  = t.tokenStartLine;
+          startCol   = t.tokenStartCol;
+          endFile    = t.tokenEndFile;
+          endLine    = t.tokenEndLine;
+          endCol     = t.tokenEndCol;
+          startPosition = t.tokenStartPosition;
+          endPosition   = t.tokenEndPosition;
+        }
+
+      final void restore (AbstractStreamTokenizer t)
+        {
+          t.ttype          = ttype;
+          t.sval           = sval;
+          t.nval           = nval;
+          t.isInteger      = isInteger;
+          t.leftQuote      = leftQuote;
+          t.rightQuote     = rightQuote;
+          t.tokenStart     = start;
+          t.tokenEnd       = end;
+          t.tokenStartFile = startFile;
+          t.tokenStartLine = startLine;
+          t.tokenStartCol  = startCol;
+          t.tokenEndFile   = endFile;
+          t.tokenEndLine   = endLine;
+          t.tokenEndCol    = endCol;
+          t.tokenStartPosition = startPosition;
+          t.tokenEndPosition   = endPosition;
+        }
+
+      /**
+       * Drops the references held by this state.
+       */
+      final void clear ()
+        {
+          sval = startFile = endFile = null;
+          start = end = null;
+        }
+    }
 }
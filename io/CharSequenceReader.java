@@ -0,0 +1,123 @@
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+// PLEASE DO NOT EDIT WITHOUT THE EXPLICIT CONSENT OF THE AUTHOR! \\
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+
+package hlt.language.io;
+
+import java.io.Reader;
+import java.io.IOException;
+
+import java.util.Objects;
+
+/**
+ * This is a <tt>Reader</tt> reading the characters of a
+ * <tt>CharSequence</tt> in place: the sequence is neither copied nor
+ * modified, so that any number of readers may share it (provided it is not
+ * modified while read). Reading in blocks from a <tt>String</tt> copies
+ * each block at once.
+ *
+ * @see         SourceCache
+ */
+
+public class CharSequenceReader extends Reader
+{
+  private CharSequence _chars;
+  private int _length;
+  private int _next = 0;
+  private int _mark = 0;
+
+  /**
+   * Constructs a <tt>CharSequenceReader</tt> reading the specified sequence.
+   */
+  public CharSequenceReader (CharSequence chars)
+    {
+      _chars = chars;
+      _length = chars.length();
+    }
+
+  private final void ensureOpen () throws IOException
+    {
+      if (_chars == null)
+        throw new IOException("Reader closed");
+    }
+
+  public int read () throws IOException
+    {
+      ensureOpen();
+
+      if (_next >= _length)
+        return IO.EOF;
+
+      return _chars.charAt(_next++);
+    }
+
+  public int read (char[] cbuf, int off, int len) throws IOException
+    {
+      ensureOpen();
+      Objects.checkFromIndexSize(off,len,cbuf.length);
+
+      if (len == 0)
+        return 0;
+
+      if (_next >= _length)
+        return IO.EOF;
+
+      int n = Math.min(len,_length-_next);
+
+      if (_chars instanceof String)
+        ((String)_chars).getChars(_next,_next+n,cbuf,off);
+      else if (_chars instanceof StringBuilder)
+        ((StringBuilder)_chars).getChars(_next,_next+n,cbuf,off);
+      else
+        for (int i = 0; i < n; i++)
+          cbuf[off+i] = _chars.charAt(_next+i);
+
+      _next += n;
+      return n;
+    }
+
+  public long skip (long n) throws IOException
+    {
+      ensureOpen();
+
+      if (n < 0)
+        throw new IllegalArgumentException
+          ("Cannot skip negative number of chars: "+n);
+
+      int k = (int)Math.min(n,_length-_next);
+      _next += k;
+      return k;
+    }
+
+  public boolean ready () throws IOException
+    {
+      ensureOpen();
+      return true;
+    }
+
+  public boolean markSupported ()
+    {
+      return true;
+    }
+
+  /**
+   * Marks the present position; the read-ahead limit is irrelevant since
+   * the whole sequence is at hand.
+   */
+  public void mark (int readAheadLimit) throws IOException
+    {
+      ensureOpen();
+      _mark = _next;
+    }
+
+  public void reset () throws IOException
+    {
+      ensureOpen();
+      _next = _mark;
+    }
+
+  public void close ()
+    {
+      _chars = null;
+    }
+}
@@ -26,5 +26,12 @@ public class CircularInclusionException extends IOException
   public CircularInclusionException (String file)
     {
       super("File: "+file);
+
+      IOEvents.CircularInclusion event = new IOEvents.CircularInclusion();
+      if (event.isEnabled())
+        {
+          event.file = file;
+          event.commit();
+        }
     }
 }
@@ -0,0 +1,611 @@
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+// PLEASE DO NOT EDIT WITHOUT THE EXPLICIT CONSENT OF THE AUTHOR! \\
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+
+package hlt.language.io;
+
+import java.io.Reader;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FileNotFoundException;
+import java.io.InterruptedIOException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ClosedChannelException;
+
+import java.nio.charset.Charset;
+
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayDeque;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import java.util.zip.CRC32;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.DataFormatException;
+
+/**
+ * This is a channel reading the decompressed contents of a compressed
+ * source, which is either a gzip file, named with the extension
+ * <tt>.gz</tt>, or an entry of a zip or jar archive, named
+ * <tt><i>archive</i>.zip!<i>entry</i></tt> (or <tt>.jar!</tt>, the entry
+ * name possibly starting with a <tt>/</tt>). An <tt>IncludeReader</tt>
+ * reads a source so named through such a channel, decoding it into
+ * characters as it does a file (see <tt>FileChannelReader</tt>), so that
+ * nothing is decompressed to disk; <tt>reader(String,Charset)</tt> does the
+ * same for any other client, such as a tokenizer.
+ * <p>
+ * Decompression proceeds in the background, a block at a time, ahead of
+ * the reader, which waits only when it catches up:
+ * <ul>
+ * <li> The members of a blocked gzip file (BGZF, whose member headers
+ *      record their compressed sizes) are independent, and are each
+ *      decompressed by a separate task, several at once.
+ * <li> Any other gzip file (including one of several members, which can
+ *      only be found by decompressing those before), or archive entry, is
+ *      decompressed by a single task, which stops when a few blocks are
+ *      ready and is resumed as they are read, so that it never holds a
+ *      thread while waiting for the reader.
+ * </ul>
+ * Different archive entries (or files) are thus decompressed in parallel
+ * when prefetched (see <tt>IncludeReader.prefetch</tt>).
+ *
+ * @see         FileChannelReader
+ * @see         IncludeReader
+ */
+
+public final class CompressedSource implements ReadableByteChannel
+{
+  /**
+   * The number of bytes decompressed at a time by the tasks decompressing
+   * streams.
+   */
+  static final int BLOCK_SIZE = FileChannelReader.BUFFER_SIZE;
+
+  /**
+   * The maximum number of blocks decompressed ahead of the reader.
+   */
+  private static final int WINDOW = Math.max(4,Runtime.getRuntime().availableProcessors());
+
+  /**
+   * The executor running the decompressing tasks. These are kept apart
+   * from those of prefetches, which may wait for them (see
+   * <tt>Prefetch</tt>), and never wait themselves, so that they always
+   * proceed; as they are compute bound, there are no more threads than
+   * processors.
+   */
+  private static final ExecutorService EXECUTOR = newExecutor();
+
+  /**
+   * Returns a pool of as many daemon threads as there are processors, which
+   * die when idle.
+   */
+  private static ExecutorService newExecutor ()
+    {
+      int size = Runtime.getRuntime().availableProcessors();
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(size,size,10,TimeUnit.SECONDS,
+                                                       new LinkedBlockingQueue<Runnable>(),
+                                                       new ThreadFactory()
+        {
+          public Thread newThread (Runnable task)
+            {
+              Thread thread = new Thread(task,"hlt.language.io.CompressedSource");
+              thread.setDaemon(true);
+              return thread;
+            }
+        });
+      pool.allowCoreThreadTimeOut(true);
+      return pool;
+    }
+
+  /**
+   * Returns <tt>true</tt> iff the specified name denotes a compressed
+   * source: a gzip file or an entry of a zip or jar archive.
+   */
+  public static boolean isCompressed (String name)
+    {
+      return name.regionMatches(true,name.length()-3,".gz",0,3) || entrySeparator(name) > 0;
+    }
+
+  /**
+   * Returns the index of the <tt>'!'</tt> separating the name of an archive
+   * from that of one of its entries in the specified name, or -1 if it does
+   * not name an archive entry.
+   */
+  static int entrySeparator (String name)
+    {
+      for (int i = name.indexOf('!'); i >= 4; i = name.indexOf('!',i+1))
+        if (name.regionMatches(true,i-4,".zip",0,4) || name.regionMatches(true,i-4,".jar",0,4))
+          return i;
+
+      return -1;
+    }
+
+  /**
+   * Returns a reader of the compressed source of the specified name,
+   * decoding its decompressed contents with the specified charset.
+   *
+   * @throws    IOException (if the source cannot be opened)
+   */
+  public static Reader reader (String name, Charset charset) throws IOException
+    {
+      return new FileChannelReader(open(name),charset);
+    }
+
+  /**
+   * Opens the compressed source of the specified name, and starts
+   * decompressing it.
+   *
+   * @throws    FileNotFoundException (if the archive has no such entry)
+   * @throws    IOException (if the source cannot be opened)
+   */
+  public static CompressedSource open (String name) throws IOException
+    {
+      int separator = entrySeparator(name);
+
+      if (separator > 0)
+        return new CompressedSource(entry(name.substring(0,separator),name.substring(separator+1)));
+
+      FileChannel file = FileChannel.open(Paths.get(name),StandardOpenOption.READ);
+
+      try
+        {
+          if (isBlocked(file))
+            return new CompressedSource(file);
+
+          file.position(0);
+          return new CompressedSource(new GZIPInputStream(Channels.newInputStream(file),BLOCK_SIZE));
+        }
+      catch (IOException | RuntimeException e)
+        {
+          file.close();
+          throw e;
+        }
+    }
+
+  /**
+   * Returns a stream of the decompressed contents of the specified entry of
+   * the specified archive, which closes the archive when it is closed.
+   */
+  private static InputStream entry (String archive, String name) throws IOException
+    {
+      final ZipFile zip = new ZipFile(archive);
+
+      try
+        {
+          ZipEntry entry = zip.getEntry(name.startsWith("/") ? name.substring(1) : name);
+
+          if (entry == null || entry.isDirectory())
+            throw new FileNotFoundException(archive+"!"+name+" (No such archive entry)");
+
+          return new FilterInputStream(zip.getInputStream(entry))
+            {
+              public void close () throws IOException
+                {
+                  try
+                    {
+                      super.close();
+                    }
+                  finally
+                    {
+                      zip.close();
+                    }
+                }
+            };
+        }
+      catch (IOException | RuntimeException e)
+        {
+          zip.close();
+          throw e;
+        }
+    }
+
+  /* ======================================================================= */
+
+  /**
+   * The block being read, if any.
+   */
+  private ByteBuffer _block;
+
+  private boolean _isClosed = false;
+
+  /**
+   * When decompressing a blocked gzip file: the file, the offset of the next
+   * member not yet being decompressed, and the members being decompressed,
+   * in order.
+   */
+  private FileChannel _file;
+  private long _nextMember = 0;
+  private ArrayDeque<Future<ByteBuffer>> _members;
+
+  /**
+   * When decompressing a stream: the stream, the blocks decompressed and not
+   * yet read, and the state of the decompressing task (all guarded by
+   * <tt>this</tt>).
+   */
+  private InputStream _stream;
+  private ArrayDeque<ByteBuffer> _ready;
+  private boolean _isRunning = false;
+  private boolean _isEnded = false;
+  private Throwable _failure;
+
+  private CompressedSource (FileChannel file)
+    {
+      _file = file;
+      _members = new ArrayDeque<Future<ByteBuffer>>();
+    }
+
+  private CompressedSource (InputStream stream)
+    {
+      _stream = stream;
+      _ready = new ArrayDeque<ByteBuffer>();
+
+      synchronized (this)
+        {
+          resume();
+        }
+    }
+
+  public boolean isOpen ()
+    {
+      return !_isClosed;
+    }
+
+  /**
+   * Reads decompressed bytes into the specified buffer, waiting for them to
+   * be decompressed if need be, and returns how many were read, or -1 at the
+   * end of the source.
+   *
+   * @throws    IOException (if the source cannot be read or decompressed)
+   */
+  public int read (ByteBuffer buffer) throws IOException
+    {
+      if (_isClosed)
+        throw new ClosedChannelException();
+
+      while (_block == null || !_block.hasRemaining())
+        if ((_block = _members != null ? nextMember() : nextBlock()) == null)
+          return IO.EOF;
+
+      int n = Math.min(buffer.remaining(),_block.remaining());
+      int limit = _block.limit();
+
+      _block.limit(_block.position()+n);
+      buffer.put(_block);
+      _block.limit(limit);
+
+      return n;
+    }
+
+  /**
+   * Stops decompressing, and closes the source.
+   */
+  public void close () throws IOException
+    {
+      if (_members != null)
+        {
+          if (_isClosed)
+            return;
+
+          _isClosed = true;
+
+          for (Future<ByteBuffer> member : _members)
+            member.cancel(false);
+
+          _members.clear();
+          _file.close();
+          return;
+        }
+
+      synchronized (this)
+        {
+          if (_isClosed)
+            return;
+
+          _isClosed = true;
+          _ready.clear();
+
+          // a running task closes the stream itself when it sees this closed:
+          if (!_isRunning)
+            _stream.close();
+        }
+    }
+
+  /* ======================================================================= */
+
+  /**
+   * Returns <tt>true</tt> iff the specified gzip file is blocked, as found
+   * from its first member's header.
+   */
+  private static boolean isBlocked (FileChannel file) throws IOException
+    {
+      return file.size() > 0 && blockSize(file,0) > 0;
+    }
+
+  /**
+   * Returns the header of the member at the specified offset in the
+   * specified file, in a buffer whose limit is the header's length. The
+   * compressed size of the member, if recorded, is that of a "BC" extra
+   * field.
+   */
+  private static ByteBuffer header (FileChannel file, long offset) throws IOException
+    {
+      ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+      readFully(file,header,offset);
+
+      if ((header.get(0) & 0xff) != 0x1f || (header.get(1) & 0xff) != 0x8b || header.get(2) != 8)
+        throw new ZipException("Not in GZIP format at offset "+offset);
+
+      if ((header.get(3) & 0x04) == 0)     // no extra field
+        return header;
+
+      int length = 12 + (header.getShort(10) & 0xffff);
+      ByteBuffer extended = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+      extended.put(header.array());
+      readFully(file,extended,offset);
+
+      return extended;
+    }
+
+  /**
+   * Returns the compressed size of the member at the specified offset in
+   * the specified gzip file, or -1 if it is not recorded.
+   */
+  private static int blockSize (FileChannel file, long offset) throws IOException
+    {
+      ByteBuffer header = header(file,offset);
+
+      // only the extra field may precede the compressed data:
+      if (header.get(3) != 0x04)
+        return -1;
+
+      for (int i = 12; i+4 <= header.limit(); i += 4 + (header.getShort(i+2) & 0xffff))
+        if (header.get(i) == 'B' && header.get(i+1) == 'C' && header.getShort(i+2) == 2)
+          return (header.getShort(i+4) & 0xffff) + 1;
+
+      return -1;
+    }
+
+  /**
+   * Fills the specified buffer from its position with the bytes of the
+   * specified file at the specified offset on.
+   */
+  private static void readFully (FileChannel file, ByteBuffer buffer, long offset) throws IOException
+    {
+      while (buffer.hasRemaining())
+        if (file.read(buffer,offset+buffer.position()) < 0)
+          throw new EOFException("Unexpected end of GZIP file");
+    }
+
+  /**
+   * Starts decompressing members until as many as allowed are in progress,
+   * and returns the next one, or <tt>null</tt> if there is none left.
+   */
+  private final ByteBuffer nextMember () throws IOException
+    {
+      long size = _file.size();
+
+      while (_members.size() < WINDOW && _nextMember < size)
+        {
+          final long offset = _nextMember;
+          final int length = blockSize(_file,offset);
+
+          if (length <= 0)
+            throw new ZipException("Not a BGZF member at offset "+offset);
+
+          _nextMember += length;
+          _members.add(EXECUTOR.submit(() -> inflate(offset,length)));
+        }
+
+      Future<ByteBuffer> member = _members.poll();
+
+      if (member == null)
+        return null;
+
+      try
+        {
+          return member.get();
+        }
+      catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while decompressing");
+        }
+      catch (ExecutionException e)
+        {
+          throw failure(e.getCause());
+        }
+    }
+
+  /**
+   * Decompresses the member of the specified offset and compressed size,
+   * and checks it against the length and checksum recorded for it.
+   */
+  private final ByteBuffer inflate (long offset, int length) throws IOException
+    {
+      ByteBuffer member = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+      readFully(_file,member,offset);
+
+      int start = 12 + (member.getShort(10) & 0xffff);
+      int crc = member.getInt(length-8);
+      int size = member.getInt(length-4);
+
+      if (start+8 > length || size < 0 || size > 16*BLOCK_SIZE)
+        throw new ZipException("Corrupt BGZF member at offset "+offset);
+
+      byte[] contents = new byte[size];
+      Inflater inflater = new Inflater(true);
+
+      try
+        {
+          inflater.setInput(member.array(),start,length-start-8);
+
+          int count = 0;
+          while (count < size && !inflater.finished())
+            {
+              int n = inflater.inflate(contents,count,size-count);
+              if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                break;
+              count += n;
+            }
+
+          if (count != size)
+            throw new ZipException("Corrupt BGZF member at offset "+offset);
+        }
+      catch (DataFormatException e)
+        {
+          throw new ZipException("Corrupt BGZF member at offset "+offset+" ("+e.getMessage()+")");
+        }
+      finally
+        {
+          inflater.end();
+        }
+
+      CRC32 checksum = new CRC32();
+      checksum.update(contents);
+
+      if ((int)checksum.getValue() != crc)
+        throw new ZipException("Corrupt BGZF member at offset "+offset+" (bad CRC)");
+
+      return ByteBuffer.wrap(contents);
+    }
+
+  /**
+   * Returns the next block decompressed from the stream, waiting for it if
+   * need be, or <tt>null</tt> if there is none left.
+   */
+  private final synchronized ByteBuffer nextBlock () throws IOException
+    {
+      while (_ready.isEmpty())
+        {
+          if (_failure != null)
+            throw failure(_failure);
+
+          if (_isEnded)
+            return null;
+
+          resume();
+
+          try
+            {
+              wait();
+            }
+          catch (InterruptedException e)
+            {
+              Thread.currentThread().interrupt();
+              throw new InterruptedIOException("Interrupted while decompressing");
+            }
+        }
+
+      ByteBuffer block = _ready.poll();
+      resume();
+      return block;
+    }
+
+  /**
+   * Restarts the decompressing task if it is stopped and there is more to
+   * decompress (to be called holding the lock).
+   */
+  private final void resume ()
+    {
+      if (_isRunning || _isEnded || _isClosed || _failure != null || _ready.size() >= WINDOW)
+        return;
+
+      _isRunning = true;
+      EXECUTOR.execute(this::decompress);
+    }
+
+  /**
+   * The decompressing task: decompresses blocks until as many as allowed
+   * are ready, or the end of the stream.
+   */
+  private final void decompress ()
+    {
+      try
+        {
+          for (;;)
+            {
+              byte[] block = new byte[BLOCK_SIZE];
+              int count = 0;
+
+              for (int n; count < BLOCK_SIZE; count += n)
+                if ((n = _stream.read(block,count,BLOCK_SIZE-count)) < 0)
+                  break;
+
+              synchronized (this)
+                {
+                  if (_isClosed)
+                    {
+                      _isRunning = false;
+                      _stream.close();
+                      return;
+                    }
+
+                  if (count > 0)
+                    _ready.add(ByteBuffer.wrap(block,0,count));
+
+                  if (count < BLOCK_SIZE)
+                    {
+                      _isEnded = true;
+                      _stream.close();
+                    }
+
+                  notifyAll();
+
+                  if (_isEnded || _ready.size() >= WINDOW)
+                    {
+                      _isRunning = false;
+                      return;
+                    }
+                }
+            }
+        }
+      catch (Throwable e)
+        {
+          synchronized (this)
+            {
+              _failure = e;
+              _isRunning = false;
+              notifyAll();
+
+              try
+                {
+                  _stream.close();
+                }
+              catch (IOException x)
+                {
+                }
+            }
+        }
+    }
+
+  /**
+   * Returns the specified failure of a decompressing task as an
+   * <tt>IOException</tt> to be thrown.
+   */
+  private static IOException failure (Throwable cause)
+    {
+      if (cause instanceof IOException)
+        return (IOException)cause;
+
+      return new IOException("Decompression failed ("+cause+")",cause);
+    }
+}
@@ -0,0 +1,719 @@
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+// PLEASE DO NOT EDIT WITHOUT THE EXPLICIT CONSENT OF THE AUTHOR! \\
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+
+package hlt.language.io;
+
+import java.io.Reader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import java.nio.charset.Charset;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+import java.nio.file.Path;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * This is a <tt>Reader</tt> decoding the contents of a file read through a
+ * <tt>FileChannel</tt>, in large blocks, with a given charset. Malformed or
+ * unmappable input is replaced, as by an <tt>InputStreamReader</tt>.
+ * <p>
+ * Bytes are turned into characters without going through the charset's
+ * decoder whenever the charset allows it: for ISO-8859-1, every byte is
+ * simply widened to a character; for US-ASCII, UTF-8, and other charsets
+ * extending ASCII, so is every run of ASCII bytes, the decoder being used
+ * only from the first byte outside ASCII on, a chunk at a time. The
+ * decoder and the buffers are reused from one file to the next in the same
+ * thread: closing a reader leaves them for the next one to use, except in
+ * the threads prefetching files (see <tt>keepSpares</tt>). At most
+ * <tt>CHUNK_SIZE</tt> characters are decoded ahead of those read.
+ * <p>
+ * The file is closed as soon as its last byte is read, and may be closed
+ * earlier by suspending the reader (as an <tt>IncludeReader</tt> does with
+ * the readers of the files it is not reading from); it is then reopened
+ * where it was left, with the decoder in the state it was left in, when
+ * more bytes are needed. A suspended reader leaves its buffers for other
+ * readers to use, keeping only its decoder and the characters it decoded
+ * and that are not read yet; the bytes it has not decoded are read again
+ * from the file. The number of files open at once by all such
+ * readers in the process may be limited (see <tt>setOpenFileLimit</tt>):
+ * opening or reopening a file past the limit waits until another is closed.
+ * <p>
+ * The bytes may also come from another channel, such as one decompressing
+ * a compressed file (see <tt>CompressedSource</tt>), in which case they are
+ * decoded the same way, but the reader cannot be suspended.
+ * <p>
+ * Unlike <tt>BufferedReader</tt>, this reader does not synchronize its
+ * operations.
+ *
+ * @see         IncludeReader
+ */
+
+public class FileChannelReader extends Reader
+{
+  /**
+   * The number of bytes read from the file at a time.
+   */
+  public static final int BUFFER_SIZE = 64*1024;
+
+  /**
+   * The maximum number of characters decoded at a time.
+   */
+  public static final int CHUNK_SIZE = 8*1024;
+
+  /**
+   * The buffers of a reader, kept for reuse once it is closed or suspended.
+   */
+  private static final class Buffers
+    {
+      final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+      final char[] chars = new char[CHUNK_SIZE];
+    }
+
+  /**
+   * The buffers and decoder left by the latest reader closed (or, for the
+   * buffers, suspended) in each thread.
+   */
+  private static final ThreadLocal<Buffers> SPARE = new ThreadLocal<Buffers>();
+  private static final ThreadLocal<CharsetDecoder> SPARE_DECODER = new ThreadLocal<CharsetDecoder>();
+
+  /**
+   * Set in the threads where the buffers and decoder of the readers closed
+   * or suspended are not to be kept for reuse (see <tt>keepSpares</tt>).
+   */
+  private static final ThreadLocal<Boolean> DROP_SPARES = new ThreadLocal<Boolean>();
+
+  /**
+   * Sets whether the buffers and decoder of the readers closed or suspended
+   * in this thread are kept for the next reader opened in it, which they
+   * are by default. They are not while a file is prefetched (see
+   * <tt>Prefetch</tt>): the reader is handed over to another thread, and
+   * the pooled thread would hold them while idle.
+   */
+  static final void keepSpares (boolean keep)
+    {
+      if (keep)
+        DROP_SPARES.remove();
+      else
+        DROP_SPARES.set(Boolean.TRUE);
+    }
+
+  /**
+   * How bytes may be turned into characters without decoding them:
+   */
+  private static final int DECODE = 0;  // they may not
+  private static final int ASCII  = 1;  // bytes from 0 to 127 may be widened
+  private static final int LATIN1 = 2;  // all bytes may be widened
+
+  /**
+   * The permits to keep a file open, one of which each reader holds while
+   * its file is open, or <tt>null</tt> if the number of files open at once
+   * is not limited, which is the default.
+   */
+  private static volatile Semaphore PERMITS = null;
+  private static volatile int OPEN_FILE_LIMIT = 0;
+
+  /**
+   * Limits the number of files open at once by all the readers of this
+   * class to the specified number, or lifts the limit if it is not
+   * positive. The files already open do not count against a new limit, and
+   * neither do the channels of readers not reading a file (see
+   * <tt>FileChannelReader(ReadableByteChannel,Charset)</tt>).
+   */
+  static synchronized void setOpenFileLimit (int limit)
+    {
+      OPEN_FILE_LIMIT = Math.max(limit,0);
+      PERMITS = limit > 0 ? new Semaphore(limit,true) : null;
+    }
+
+  /**
+   * Returns the maximum number of files open at once by all the readers of
+   * this class, or 0 if there is none.
+   */
+  static int getOpenFileLimit ()
+    {
+      return OPEN_FILE_LIMIT;
+    }
+
+  /**
+   * The file read, or <tt>null</tt> if the bytes come from a channel that
+   * cannot be reopened.
+   */
+  private final Path _path;
+
+  /**
+   * The channel to the file, or <tt>null</tt> if it is closed, and the
+   * permits one of which is held while it is open (if the number of open
+   * files is limited).
+   */
+  private ReadableByteChannel _channel;
+  private Semaphore _permits;
+
+  /**
+   * The number of bytes read from the file so far, where reading resumes
+   * when it is reopened.
+   */
+  private long _position = 0;
+
+  private final CharsetDecoder _decoder;
+  private final int _widening;
+
+  /**
+   * The buffers, or <tt>null</tt> while this reader is suspended, and once
+   * it is closed.
+   */
+  private Buffers _buffers;
+
+  /**
+   * The bytes read and not yet turned into characters are those between
+   * the position and the limit of the byte buffer.
+   */
+  private ByteBuffer _bytes;
+
+  /**
+   * The characters decoded and not yet read.
+   */
+  private char[] _chars;
+  private int _next = 0;
+  private int _count = 0;
+
+  /**
+   * While this reader is suspended, the characters decoded and not yet
+   * read, and the bytes not yet decoded if the end of the file has been
+   * reached (they are read again from the file otherwise).
+   */
+  private char[] _pendingChars;
+  private byte[] _pendingBytes;
+
+  private boolean _isClosed = false;
+
+  /**
+   * Whether the end of the file has been reached, and whether the decoder
+   * has been flushed since.
+   */
+  private boolean _isAtEnd = false;
+  private boolean _isFlushed = false;
+
+  /**
+   * Constructs a <tt>FileChannelReader</tt> reading the specified file with
+   * the specified charset.
+   *
+   * @throws    IOException (if the file cannot be opened)
+   */
+  public FileChannelReader (Path file, Charset charset) throws IOException
+    {
+      _path = file;
+      _widening = widening(charset);
+
+      open();
+
+      _decoder = decoder(charset);
+      takeBuffers();
+    }
+
+  /**
+   * Constructs a <tt>FileChannelReader</tt> decoding the bytes read from the
+   * specified channel with the specified charset. The channel is not
+   * counted against the open file limit, and is closed once read to the
+   * end.
+   */
+  FileChannelReader (ReadableByteChannel channel, Charset charset)
+    {
+      _path = null;
+      _widening = widening(charset);
+      _channel = channel;
+      _decoder = decoder(charset);
+      takeBuffers();
+    }
+
+  /**
+   * Constructs a <tt>FileChannelReader</tt> reading the specified file with
+   * the default charset.
+   *
+   * @throws    IOException (if the file cannot be opened)
+   */
+  public FileChannelReader (Path file) throws IOException
+    {
+      this(file,Charset.defaultCharset());
+    }
+
+  /**
+   * Returns the charset with which the file is decoded.
+   */
+  public final Charset getCharset ()
+    {
+      return _decoder.charset();
+    }
+
+  /**
+   * Closes the file, if it is open, and leaves the buffers for other
+   * readers, keeping the decoder and the characters decoded and not yet
+   * read, so that the file is reopened where it was left, and the buffers
+   * taken back, when more characters are needed. An error closing the file
+   * is ignored, since nothing more is read from it. This does nothing if
+   * the bytes do not come from a file.
+   */
+  final void suspend ()
+    {
+      if (_path == null)
+        return;
+
+      try
+        {
+          release();
+        }
+      catch (IOException e)
+        {
+        }
+
+      if (_buffers == null)
+        return;
+
+      _pendingChars = Arrays.copyOfRange(_chars,_next,_count);
+
+      // the decoder has not seen the bytes left in the buffer, so they may
+      // be read again, unless the file has been closed for good:
+      if (_isAtEnd)
+        {
+          _pendingBytes = new byte[_bytes.remaining()];
+          _bytes.get(_pendingBytes);
+        }
+      else
+        _position -= _bytes.remaining();
+
+      giveBuffers();
+      _next = _count = 0;
+    }
+
+  private final void ensureOpen () throws IOException
+    {
+      if (_isClosed)
+        throw new IOException("Reader closed");
+    }
+
+  public int read () throws IOException
+    {
+      if (_next == _count && !fill())
+        return IO.EOF;
+
+      return _chars[_next++];
+    }
+
+  public int read (char[] cbuf, int off, int len) throws IOException
+    {
+      Objects.checkFromIndexSize(off,len,cbuf.length);
+
+      if (len == 0)
+        return 0;
+
+      if (_next == _count && !fill())
+        return IO.EOF;
+
+      int n = Math.min(len,_count-_next);
+      System.arraycopy(_chars,_next,cbuf,off,n);
+      _next += n;
+      return n;
+    }
+
+  public long skip (long n) throws IOException
+    {
+      if (n < 0)
+        throw new IllegalArgumentException("Cannot skip negative number of chars: "+n);
+
+      long skipped = 0;
+
+      while (skipped < n && (_next < _count || fill()))
+        {
+          int k = (int)Math.min(n-skipped,_count-_next);
+          _next += k;
+          skipped += k;
+        }
+
+      return skipped;
+    }
+
+  public boolean ready () throws IOException
+    {
+      ensureOpen();
+
+      if (_buffers == null)
+        return _pendingChars.length > 0 || _pendingBytes != null && _pendingBytes.length > 0;
+
+      return _next < _count || _bytes.hasRemaining()
+          || _channel instanceof FileChannel
+             && ((FileChannel)_channel).position() < ((FileChannel)_channel).size();
+    }
+
+  /**
+   * Closes the file, and leaves the decoder and buffers for the next reader
+   * opened in this thread.
+   */
+  public void close () throws IOException
+    {
+      if (_isClosed)
+        return;
+
+      _isClosed = true;
+
+      try
+        {
+          release();
+        }
+      finally
+        {
+          if (_buffers != null)
+            giveBuffers();
+
+          if (DROP_SPARES.get() == null)
+            {
+              _decoder.reset();
+              SPARE_DECODER.set(_decoder);
+            }
+          _pendingChars = null;
+          _pendingBytes = null;
+          _next = _count = 0;
+        }
+    }
+
+  /* ======================================================================= */
+
+  /**
+   * Returns the size in bytes of the file read, or -1 if the bytes do not
+   * come from a file.
+   *
+   * @throws    IOException (if the size cannot be found)
+   */
+  final long fileSize () throws IOException
+    {
+      if (_path == null)
+        return -1;
+
+      if (_channel instanceof FileChannel)
+        return ((FileChannel)_channel).size();
+
+      return Files.size(_path);
+    }
+
+  /**
+   * Opens the file at the current position, waiting for a permit first if
+   * the number of open files is limited.
+   */
+  private final void open () throws IOException
+    {
+      Semaphore permits = PERMITS;
+
+      if (permits != null)
+        try
+          {
+            permits.acquire();
+          }
+        catch (InterruptedException e)
+          {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(_path+" (interrupted waiting to be opened)");
+          }
+
+      FileChannel channel = null;
+
+      try
+        {
+          channel = FileChannel.open(_path,StandardOpenOption.READ);
+
+          if (_position > 0)
+            {
+              if (channel.size() < _position)
+                throw new IOException(_path+" (truncated while suspended)");
+
+              channel.position(_position);
+            }
+        }
+      catch (IOException | RuntimeException e)
+        {
+          if (channel != null)
+            try
+              {
+                channel.close();
+              }
+            catch (IOException x)
+              {
+                e.addSuppressed(x);
+              }
+
+          if (permits != null)
+            permits.release();
+
+          throw e;
+        }
+
+      _channel = channel;
+      _permits = permits;
+    }
+
+  /**
+   * Closes the file, if it is open, and gives back its permit.
+   */
+  private final void release () throws IOException
+    {
+      ReadableByteChannel channel = _channel;
+
+      if (channel == null)
+        return;
+
+      _channel = null;
+
+      try
+        {
+          channel.close();
+        }
+      finally
+        {
+          if (_permits != null)
+            {
+              _permits.release();
+              _permits = null;
+            }
+        }
+    }
+
+  /**
+   * Returns the spare decoder of this thread if it is for the specified
+   * charset, or a new one.
+   */
+  private static CharsetDecoder decoder (Charset charset)
+    {
+      CharsetDecoder decoder = SPARE_DECODER.get();
+
+      if (decoder != null && decoder.charset().equals(charset))
+        {
+          SPARE_DECODER.set(null);
+          return decoder;
+        }
+
+      return charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+  /**
+   * Takes the spare buffers of this thread, or new ones, with no bytes in
+   * them.
+   */
+  private final void takeBuffers ()
+    {
+      Buffers buffers = SPARE.get();
+
+      if (buffers != null)
+        SPARE.set(null);
+      else
+        buffers = new Buffers();
+
+      _buffers = buffers;
+      _bytes = buffers.bytes;
+      _chars = buffers.chars;
+
+      _bytes.clear().flip();
+    }
+
+  /**
+   * Leaves the buffers as the spare ones of this thread, unless they are not
+   * to be kept in it.
+   */
+  private final void giveBuffers ()
+    {
+      if (DROP_SPARES.get() == null)
+        SPARE.set(_buffers);
+
+      _buffers = null;
+      _bytes = null;
+      _chars = null;
+    }
+
+  /**
+   * Takes buffers back after being suspended, puts back in them what was
+   * set aside, and returns <tt>true</tt> if that includes any characters.
+   */
+  private final boolean resume ()
+    {
+      takeBuffers();
+
+      if (_pendingBytes != null)
+        {
+          _bytes.clear();
+          _bytes.put(_pendingBytes).flip();
+          _pendingBytes = null;
+        }
+
+      _count = _pendingChars.length;
+      System.arraycopy(_pendingChars,0,_chars,0,_count);
+      _pendingChars = null;
+      _next = 0;
+
+      return _count > 0;
+    }
+
+  /**
+   * Returns how bytes in the specified charset may be turned into
+   * characters without decoding them. Besides ISO-8859-1, only the standard
+   * charsets known to encode every ASCII character as the same single byte,
+   * and no other character with such a byte, are widened.
+   */
+  private static int widening (Charset charset)
+    {
+      if (charset.equals(StandardCharsets.ISO_8859_1))
+        return LATIN1;
+
+      String name = charset.name();
+
+      if (charset.equals(StandardCharsets.US_ASCII) || charset.equals(StandardCharsets.UTF_8)
+          || name.startsWith("ISO-8859-") || name.startsWith("windows-125"))
+        return ASCII;
+
+      return DECODE;
+    }
+
+  /**
+   * Fills the character buffer with at least one character, and returns
+   * <tt>false</tt> if there is none left.
+   */
+  private final boolean fill () throws IOException
+    {
+      ensureOpen();
+
+      if (_buffers == null && resume())
+        return true;
+
+      _next = _count = 0;
+
+      while (_count == 0)
+        {
+          if (!_bytes.hasRemaining() && !_isAtEnd)
+            readBytes();
+
+          if (_bytes.hasRemaining())
+            {
+              if (_widening != DECODE)
+                widen();
+
+              if (_count == 0)
+                decode();
+            }
+          else
+            if (_isAtEnd)
+              return flush();
+        }
+
+      return true;
+    }
+
+  /**
+   * Reads more bytes from the file after those not yet turned into
+   * characters, reopening the file if it was suspended, and closing it
+   * once it has been read to the end.
+   */
+  private final void readBytes () throws IOException
+    {
+      if (_channel == null)
+        open();
+
+      _bytes.compact();
+
+      try
+        {
+          while (_bytes.hasRemaining())
+            {
+              int n = _channel.read(_bytes);
+
+              if (n < 0)
+                {
+                  _isAtEnd = true;
+                  release();
+                  break;
+                }
+
+              if (n == 0)
+                break;
+
+              _position += n;
+            }
+        }
+      finally
+        {
+          _bytes.flip();
+        }
+    }
+
+  /**
+   * Widens the bytes that need no decoding into characters, stopping at the
+   * first one that does.
+   */
+  private final void widen ()
+    {
+      byte[] bytes = _bytes.array();
+      int from = _bytes.arrayOffset() + _bytes.position();
+      int n = Math.min(_bytes.remaining(),_chars.length);
+      char[] chars = _chars;
+      int i = 0;
+
+      if (_widening == LATIN1)
+        for (; i < n; i++)
+          chars[i] = (char)(bytes[from+i] & 0xff);
+      else
+        for (byte b; i < n && (b = bytes[from+i]) >= 0; i++)
+          chars[i] = (char)b;
+
+      _bytes.position(_bytes.position()+i);
+      _count = i;
+    }
+
+  /**
+   * Decodes the bytes, up to the end of the buffer or until the character
+   * buffer is full.
+   */
+  private final void decode () throws IOException
+    {
+      CharBuffer chars = CharBuffer.wrap(_chars);
+      CoderResult result = _decoder.decode(_bytes,chars,_isAtEnd);
+
+      if (result.isError())
+        result.throwException();
+
+      _count = chars.position();
+
+      // an incomplete sequence at the end of the buffer needs more bytes:
+      if (_count == 0 && result.isUnderflow() && !_isAtEnd)
+        readBytes();
+    }
+
+  /**
+   * Flushes the decoder at the end of the file, and returns <tt>true</tt>
+   * if that yields any characters.
+   */
+  private final boolean flush () throws IOException
+    {
+      if (_isFlushed)
+        return false;
+
+      CharBuffer chars = CharBuffer.wrap(_chars);
+      _decoder.decode(_bytes,chars,true);
+      _decoder.flush(chars);
+      _isFlushed = true;
+      _count = chars.position();
+
+      return _count > 0;
+    }
+}
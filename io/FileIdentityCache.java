@@ -0,0 +1,104 @@
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+// PLEASE DO NOT EDIT WITHOUT THE EXPLICIT CONSENT OF THE AUTHOR! \\
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+
+package hlt.language.io;
+
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.InvalidPathException;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import java.util.Map;
+import java.util.LinkedHashMap;
+
+/**
+ * This maps file names to file identities, such that two names denote the
+ * same file iff they map to equal identities, whatever the links, relative
+ * paths, or redundant separators they go through. The identity of an
+ * existing file is its file key (<i>e.g.</i>, its device and inode numbers)
+ * where the file system provides one, and its real path otherwise. The
+ * identity of a file that cannot be accessed is its absolute normalized
+ * path.
+ * <p>
+ * Identities are memoized for the most recently used names, so that the
+ * file system is queried only once per name as long as it stays in the
+ * cache; identities of files that cannot be accessed are not memoized.
+ *
+ * @see         IncludeReader
+ */
+
+final class FileIdentityCache
+{
+  /**
+   * The default maximum number of names whose identities are memoized.
+   */
+  static final int DEFAULT_CAPACITY = 1024;
+
+  private final int _capacity;
+
+  private final LinkedHashMap<String,Object> _identities;
+
+  FileIdentityCache ()
+    {
+      this(DEFAULT_CAPACITY);
+    }
+
+  @SuppressWarnings("serial")
+  FileIdentityCache (int capacity)
+    {
+      _capacity = capacity;
+      _identities = new LinkedHashMap<String,Object>(16,0.75f,true)
+        {
+          protected boolean removeEldestEntry (Map.Entry<String,Object> eldest)
+            {
+              return size() > _capacity;
+            }
+        };
+    }
+
+  /**
+   * Returns the identity of the specified file.
+   */
+  final Object identity (String file)
+    {
+      Object identity = _identities.get(file);
+
+      if (identity != null)
+        return identity;
+
+      try
+        {
+          Path path = Paths.get(file);
+
+          try
+            {
+              BasicFileAttributes attributes = Files.readAttributes(path,BasicFileAttributes.class);
+              identity = attributes.fileKey();
+              if (identity == null)
+                identity = path.toRealPath().toString();
+              _identities.put(file,identity);
+              return identity;
+            }
+          catch (IOException e)
+            {
+              return path.toAbsolutePath().normalize().toString();
+            }
+        }
+      catch (InvalidPathException e)
+        {
+          return file;
+        }
+    }
+
+  /**
+   * Forgets all the memoized identities.
+   */
+  final void clear ()
+    {
+      _identities.clear();
+    }
+}
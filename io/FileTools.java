@@ -6,14 +6,29 @@ package hlt.language.io;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
+
+import java.nio.ByteBuffer;
+
+import java.nio.channels.FileChannel;
+
+import java.nio.file.Path;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.attribute.PosixFileAttributeView;
 
 import java.util.List;
 import java.util.ArrayList;
 
+import java.util.concurrent.ThreadLocalRandom;
+
 /**
  * This class defines some simple static functions that manipulate
  * file names. It has no constructor since all its methods are
@@ -129,20 +144,226 @@ public final class FileTools
 
   /**
    * Copies src file to dst file.  If the dst file does not exist, it is
-   * created.
+   * created.  See <tt>copy(File,File,boolean,boolean)</tt>.
    */
   public final static void copy (File src, File dst) throws IOException
     {
-      InputStream in = new FileInputStream(src);
-      OutputStream out = new FileOutputStream(dst);
-
-      // Transfer bytes from in to out
-      byte[] buf = new byte[1024];
-      int len;
-      while ((len = in.read(buf)) > 0)
-        out.write(buf, 0, len);
-      in.close();
-      out.close();
+      copy(src,dst,false,false);
+    }
+
+  /**
+   * Copies src file to dst file, writing over dst in place, and returns the
+   * number of bytes copied.  See <tt>copy(File,File,boolean,boolean)</tt>.
+   */
+  public final static long copy (File src, File dst, boolean preserveAttributes) throws IOException
+    {
+      return copy(src,dst,preserveAttributes,false);
+    }
+
+  /**
+   * The maximum number of bytes transferred at once when copying: large
+   * files are copied in several transfers, each of which is limited to
+   * less than 2 GB on some platforms.
+   */
+  private static final long TRANSFER_SIZE = 1L << 30;
+
+  /**
+   * The size of the buffer through which the bytes of a source that cannot
+   * be transferred directly are copied.
+   */
+  private static final int COPY_BUFFER_SIZE = 8192;
+
+  /**
+   * Copies src file to dst file, and returns the number of bytes copied.
+   * The bytes of a regular file are transferred from file to file by the
+   * operating system where it can (see <tt>FileChannel.transferTo</tt>),
+   * without going through the heap; those of other sources (such as pipes,
+   * devices, or files whose size is not known, like those in
+   * <tt>/proc</tt>) are read until the end.
+   * <p>
+   * If <tt>atomically</tt> is false, dst is written over in place, as with
+   * a <tt>FileOutputStream</tt>: if it is a symbolic link, the file it
+   * links to is written, and it keeps its permissions, owner, and other
+   * links. Otherwise, src is first copied to a temporary file next to the
+   * file dst denotes (following symbolic links), which then replaces it at
+   * once (atomically where the file system allows it), so that it is never
+   * seen partly copied, and is left as it was if the copy fails. It then
+   * keeps its POSIX permissions, where the file system supports them, but
+   * being a new file, not its owner nor its other links.
+   * <p>
+   * If <tt>preserveAttributes</tt> is true, dst gets the last modification
+   * time of src and, where the file system supports them, its POSIX
+   * permissions.
+   *
+   * @throws    FileNotFoundException (if src cannot be read, dst is a
+   *            directory, or it cannot be written)
+   * @throws    IOException (if the copy fails)
+   */
+  public final static long copy (File src, File dst, boolean preserveAttributes, boolean atomically) throws IOException
+    {
+      if (!atomically)
+        {
+          // writing over src in place would truncate it first:
+          if (src.exists() && dst.exists() && Files.isSameFile(src.toPath(),dst.toPath()))
+            return src.length();
+
+          try (FileChannel in = new FileInputStream(src).getChannel();
+               FileChannel out = new FileOutputStream(dst).getChannel())
+            {
+              long count = transfer(src,in,out);
+
+              if (preserveAttributes)
+                copyAttributes(src.toPath(),dst.toPath());
+
+              return count;
+            }
+        }
+
+      Path target = dst.toPath().toAbsolutePath();
+
+      if (Files.isDirectory(target))
+        throw new FileNotFoundException(dst+" (Is a directory)");
+
+      // replace the file a symbolic link denotes rather than the link:
+      if (Files.exists(target))
+        target = target.toRealPath();
+
+      Path temp = null;
+
+      try (FileChannel in = new FileInputStream(src).getChannel())
+        {
+          temp = createTemporary(target);
+          long count;
+
+          try (FileChannel out = FileChannel.open(temp,StandardOpenOption.WRITE))
+            {
+              count = transfer(src,in,out);
+            }
+
+          if (preserveAttributes)
+            copyAttributes(src.toPath(),temp);
+          else
+            if (Files.exists(target))
+              copyPermissions(target,temp);
+
+          try
+            {
+              Files.move(temp,target,StandardCopyOption.ATOMIC_MOVE,StandardCopyOption.REPLACE_EXISTING);
+            }
+          catch (AtomicMoveNotSupportedException e)
+            {
+              Files.move(temp,target,StandardCopyOption.REPLACE_EXISTING);
+            }
+
+          return count;
+        }
+      catch (Throwable e)
+        {
+          if (temp != null)
+            try
+              {
+                Files.deleteIfExists(temp);
+              }
+            catch (IOException x)
+              {
+                e.addSuppressed(x);
+              }
+
+          throw e;
+        }
+    }
+
+  /**
+   * Copies all the bytes of the specified input channel, reading the
+   * specified file from its start, to the specified output channel, and
+   * returns their number.
+   *
+   * @throws    IOException (if the copy fails)
+   */
+  private static long transfer (File src, FileChannel in, FileChannel out) throws IOException
+    {
+      long size = in.size();
+      long position = 0;
+
+      // a size of 0 may just mean that it is not known:
+      if (size == 0 || !src.isFile())
+        {
+          ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+
+          while (in.read(buffer) >= 0)
+            {
+              buffer.flip();
+              while (buffer.hasRemaining())
+                position += out.write(buffer);
+              buffer.clear();
+            }
+
+          return position;
+        }
+
+      while (position < size)
+        {
+          long count = in.transferTo(position,Math.min(TRANSFER_SIZE,size-position),out);
+
+          if (count == 0)
+            throw new IOException(src+" (truncated while copied)");
+
+          position += count;
+        }
+
+      return position;
+    }
+
+  /**
+   * Gives the specified target the last modification time of the specified
+   * source and, where the file system supports them, its POSIX permissions.
+   */
+  private static void copyAttributes (Path source, Path target) throws IOException
+    {
+      copyPermissions(source,target);
+      Files.setLastModifiedTime(target,Files.getLastModifiedTime(source));
+    }
+
+  /**
+   * Gives the specified target the POSIX permissions of the specified
+   * source, where the file system supports them.
+   */
+  private static void copyPermissions (Path source, Path target) throws IOException
+    {
+      PosixFileAttributeView view = Files.getFileAttributeView(source,PosixFileAttributeView.class);
+
+      if (view != null && Files.getFileAttributeView(target,PosixFileAttributeView.class) != null)
+        Files.setPosixFilePermissions(target,view.readAttributes().permissions());
+    }
+
+  /**
+   * Creates and returns a new empty file in the directory of the specified
+   * one, named after it.
+   *
+   * @throws    FileNotFoundException (if the directory cannot be written)
+   */
+  private static Path createTemporary (Path file) throws IOException
+    {
+      Path dir = file.getParent();
+      String name = "." + file.getFileName() + ".";
+
+      for (;;)
+        try
+          {
+            Path temp = dir.resolve(name + Long.toHexString(ThreadLocalRandom.current().nextLong() >>> 16) + ".tmp");
+            Files.newByteChannel(temp,StandardOpenOption.WRITE,StandardOpenOption.CREATE_NEW).close();
+            return temp;
+          }
+        catch (FileAlreadyExistsException e)
+          {
+          }
+        catch (NoSuchFileException | AccessDeniedException e)
+          {
+            String reason = e instanceof NoSuchFileException ? "No such file or directory" : "Permission denied";
+            FileNotFoundException exception = new FileNotFoundException(file+" ("+reason+")");
+            exception.initCause(e);
+            throw exception;
+          }
     }
 
   static private char _separator = File.separatorChar;
@@ -0,0 +1,186 @@
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+// PLEASE DO NOT EDIT WITHOUT THE EXPLICIT CONSENT OF THE AUTHOR! \\
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+
+package hlt.language.io;
+
+import jdk.jfr.Name;
+import jdk.jfr.Label;
+import jdk.jfr.Event;
+import jdk.jfr.Enabled;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Threshold;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Description;
+
+/**
+ * This class gathers the Java Flight Recorder events emitted by include
+ * readers and tokenizers. All are disabled by default, in which case
+ * emitting them costs next to nothing; they are enabled by name in a
+ * recording's settings, <i>e.g.</i>:
+ * <pre>
+ * java -XX:StartFlightRecording:settings=profile,hlt.language.io.Include#enabled=true ...
+ * </pre>
+ * or with <tt>jfr configure</tt>. The tokenizer phase events (comment
+ * skips, quoted strings, and lookahead refills) are sampled by duration:
+ * only those lasting at least their threshold (1 ms by default) are
+ * recorded.
+ */
+
+final class IOEvents
+{
+  private IOEvents ()
+    {
+    }
+
+  /**
+   * Emitted when an include reader opens an included file; the duration
+   * is that of opening the file.
+   */
+  @Name("hlt.language.io.Include")
+  @Label("Inclusion Start")
+  @Category({"HLT", "Language I/O"})
+  @Description("A file included by an IncludeReader was opened")
+  @Enabled(false)
+  @StackTrace(false)
+  static final class Include extends Event
+    {
+      @Label("File")
+      String file;
+
+      @Label("Depth")
+      int depth;
+
+      @Label("Size")
+      @DataAmount
+      long bytes;
+    }
+
+  /**
+   * Emitted when an include reader reaches the end of an included file and
+   * resumes reading the enclosing one; the duration is that of the whole
+   * inclusion.
+   */
+  @Name("hlt.language.io.InclusionEnd")
+  @Label("Inclusion End")
+  @Category({"HLT", "Language I/O"})
+  @Description("An IncludeReader finished reading an included file")
+  @Enabled(false)
+  @StackTrace(false)
+  static final class InclusionEnd extends Event
+    {
+      @Label("File")
+      String file;
+
+      @Label("Depth")
+      int depth;
+
+      @Label("Lines")
+      int lines;
+
+      /**
+       * Returns a started event if this event is enabled, and <tt>null</tt>
+       * otherwise.
+       */
+      static InclusionEnd start ()
+        {
+          InclusionEnd event = new InclusionEnd();
+
+          if (!event.isEnabled())
+            return null;
+
+          event.begin();
+          return event;
+        }
+    }
+
+  /**
+   * Emitted when a circular inclusion is detected.
+   */
+  @Name("hlt.language.io.CircularInclusion")
+  @Label("Circular Inclusion")
+  @Category({"HLT", "Language I/O"})
+  @Description("A file already being included was included again")
+  @Enabled(false)
+  static final class CircularInclusion extends Event
+    {
+      @Label("File")
+      String file;
+    }
+
+  /**
+   * The tokenizer phase events: each records where the phase started and
+   * how many characters it went through.
+   */
+  static abstract class Phase extends Event
+    {
+      @Label("File")
+      String file;
+
+      @Label("Line")
+      int line;
+
+      @Label("Characters")
+      long length;
+
+      /**
+       * Ends this event and commits it with the specified data if it lasted
+       * long enough to be recorded.
+       */
+      final void record (String file, int line, long length)
+        {
+          record(file,null,0,line,length);
+        }
+
+      /**
+       * Ends this event and commits it with the specified data if it lasted
+       * long enough to be recorded, the line being that of the specified
+       * offset in the specified line index if there is one (as for a
+       * tokenizer's current character), which is then only computed if the
+       * event is committed.
+       */
+      final void record (String file, LineIndex lines, int offset, int line, long length)
+        {
+          end();
+
+          if (shouldCommit())
+            {
+              this.file = file;
+              this.line = lines == null ? line : lines.line(offset);
+              this.length = length;
+              commit();
+            }
+        }
+    }
+
+  @Name("hlt.language.io.CommentSkip")
+  @Label("Comment Skip")
+  @Category({"HLT", "Language I/O", "Tokenizer"})
+  @Description("A tokenizer skipped a comment")
+  @Enabled(false)
+  @Threshold("1 ms")
+  static final class CommentSkip extends Phase
+    {
+    }
+
+  @Name("hlt.language.io.QuotedString")
+  @Label("Quoted String")
+  @Category({"HLT", "Language I/O", "Tokenizer"})
+  @Description("A tokenizer read a quoted string")
+  @Enabled(false)
+  @Threshold("1 ms")
+  static final class QuotedString extends Phase
+    {
+    }
+
+  @Name("hlt.language.io.LookaheadRefill")
+  @Label("Lookahead Refill")
+  @Category({"HLT", "Language I/O", "Tokenizer"})
+  @Description("A lookahead reader refilled its buffer")
+  @Enabled(false)
+  @Threshold("1 ms")
+  static final class LookaheadRefill extends Phase
+    {
+    }
+}
@@ -0,0 +1,593 @@
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+// PLEASE DO NOT EDIT WITHOUT THE EXPLICIT CONSENT OF THE AUTHOR! \\
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+
+package hlt.language.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import java.util.Map;
+import java.util.List;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Collections;
+
+/**
+ * This is a record of the include dependencies between files, as found by
+ * include readers (see <tt>IncludeReader.setIncludeGraph</tt>). It holds
+ * the root files read, and for each inclusion of a file into another, the
+ * including file, the included file, and the line and column at which the
+ * inclusion occurred. It also holds, for each file, the size and last
+ * modification time it had when read, and the SHA-256 hash of its contents,
+ * which is computed the first time it is needed.
+ * <p>
+ * A graph may be saved to a file and loaded back (see <tt>save</tt> and
+ * <tt>load</tt>), so that a later run may tell which files changed since
+ * (see <tt>changedFiles()</tt>) and which roots need to be read anew because
+ * they include, directly or not, a changed file (see
+ * <tt>affectedRoots</tt>): the results of reading all the other roots may
+ * be reused. A file whose size and modification time did not change is
+ * deemed unchanged without being read; otherwise, it is deemed changed only
+ * if its contents' hash did.
+ * <p>
+ * All methods are thread-safe.
+ *
+ * @see         IncludeReader
+ * @see         TokenCache
+ */
+
+public class IncludeGraph
+{
+  /**
+   * The magic number starting a saved graph ("HLTG").
+   */
+  static final int MAGIC = 0x484c5447;
+
+  /**
+   * The version of the format; graphs of any other version are rejected.
+   */
+  static final int VERSION = 1;
+
+  /**
+   * An inclusion: the including file, the included file, and the position
+   * of the inclusion in the including file.
+   */
+  public static final class Edge
+    {
+      private final String _from;
+      private final String _to;
+      private final int _line;
+      private final int _col;
+
+      Edge (String from, String to, int line, int col)
+        {
+          _from = from;
+          _to = to;
+          _line = line;
+          _col = col;
+        }
+
+      /**
+       * Returns the name of the including file.
+       */
+      public final String from ()
+        {
+          return _from;
+        }
+
+      /**
+       * Returns the name of the included file.
+       */
+      public final String to ()
+        {
+          return _to;
+        }
+
+      /**
+       * Returns the line number of the inclusion in the including file.
+       */
+      public final int line ()
+        {
+          return _line;
+        }
+
+      /**
+       * Returns the column number of the inclusion in the including file.
+       */
+      public final int col ()
+        {
+          return _col;
+        }
+
+      public boolean equals (Object other)
+        {
+          if (!(other instanceof Edge))
+            return false;
+
+          Edge edge = (Edge)other;
+          return _from.equals(edge._from) && _to.equals(edge._to)
+              && _line == edge._line && _col == edge._col;
+        }
+
+      public int hashCode ()
+        {
+          return 31*(31*(31*_from.hashCode() + _to.hashCode()) + _line) + _col;
+        }
+
+      public String toString ()
+        {
+          return _from + ":" + _line + "." + _col + " -> " + _to;
+        }
+    }
+
+  /**
+   * What is known of a file: its size and last modification time when read
+   * (-1 if unknown), and its contents' hash (<tt>null</tt> until computed).
+   */
+  private static final class Node
+    {
+      long size = -1;
+      long lastModified = -1;
+      String hash;
+    }
+
+  /**
+   * The files, in the order they were recorded.
+   */
+  private final LinkedHashMap<String,Node> _nodes = new LinkedHashMap<String,Node>();
+
+  /**
+   * The root files.
+   */
+  private final LinkedHashSet<String> _roots = new LinkedHashSet<String>();
+
+  /**
+   * The inclusions, in the order they were recorded, and indexed by
+   * including file and by included file.
+   */
+  private final LinkedHashSet<Edge> _edges = new LinkedHashSet<Edge>();
+  private final HashMap<String,ArrayList<Edge>> _inclusions = new HashMap<String,ArrayList<Edge>>();
+  private final HashMap<String,ArrayList<Edge>> _includers = new HashMap<String,ArrayList<Edge>>();
+
+  /**
+   * Constructs an empty <tt>IncludeGraph</tt>.
+   */
+  public IncludeGraph ()
+    {
+    }
+
+  /**
+   * Records the specified file as a root.
+   */
+  public final synchronized void addRoot (String file)
+    {
+      node(file);
+      _roots.add(file);
+    }
+
+  /**
+   * Records the inclusion of the specified file into the specified one at
+   * the specified position. If the including file is <tt>null</tt>, the
+   * included file is recorded as a root.
+   */
+  public final synchronized void addInclusion (String from, String to, int line, int col)
+    {
+      if (from == null)
+        {
+          addRoot(to);
+          return;
+        }
+
+      node(from);
+      node(to);
+
+      Edge edge = new Edge(from,to,line,col);
+
+      if (_edges.add(edge))
+        index(edge);
+    }
+
+  /**
+   * Returns the root files.
+   */
+  public final synchronized List<String> roots ()
+    {
+      return Collections.unmodifiableList(new ArrayList<String>(_roots));
+    }
+
+  /**
+   * Returns all the files.
+   */
+  public final synchronized List<String> files ()
+    {
+      return Collections.unmodifiableList(new ArrayList<String>(_nodes.keySet()));
+    }
+
+  /**
+   * Returns all the inclusions.
+   */
+  public final synchronized List<Edge> edges ()
+    {
+      return Collections.unmodifiableList(new ArrayList<Edge>(_edges));
+    }
+
+  /**
+   * Returns the inclusions of the specified file into others.
+   */
+  public final synchronized List<Edge> includers (String file)
+    {
+      return edges(_includers,file);
+    }
+
+  /**
+   * Returns the inclusions of other files into the specified one.
+   */
+  public final synchronized List<Edge> inclusions (String file)
+    {
+      return edges(_inclusions,file);
+    }
+
+  /**
+   * Returns the hash of the contents the specified file had when read, or
+   * <tt>null</tt> if it is not known (the file is not in this graph, or was
+   * modified or deleted since it was read and before its hash was needed).
+   */
+  public final synchronized String hash (String file)
+    {
+      Node node = _nodes.get(file);
+
+      if (node == null)
+        return null;
+
+      hash(file,node);
+      return node.hash;
+    }
+
+  /**
+   * Returns the files that changed since they were read, including those
+   * that no longer exist. Only the files whose size or modification time
+   * changed are read (see <tt>hasChanged</tt>).
+   */
+  public final synchronized Set<String> changedFiles ()
+    {
+      LinkedHashSet<String> changed = new LinkedHashSet<String>();
+
+      for (Map.Entry<String,Node> entry : _nodes.entrySet())
+        if (hasChanged(entry.getKey(),entry.getValue()))
+          changed.add(entry.getKey());
+
+      return changed;
+    }
+
+  /**
+   * Returns the roots that are, or include, directly or not, any of the
+   * specified files.
+   */
+  public final synchronized Set<String> affectedRoots (Collection<String> files)
+    {
+      HashSet<String> affected = new HashSet<String>();
+      ArrayList<String> pending = new ArrayList<String>(files);
+
+      while (!pending.isEmpty())
+        {
+          String file = pending.remove(pending.size()-1);
+
+          if (!affected.add(file))
+            continue;
+
+          ArrayList<Edge> includers = _includers.get(file);
+          if (includers != null)
+            for (Edge edge : includers)
+              pending.add(edge._from);
+        }
+
+      LinkedHashSet<String> roots = new LinkedHashSet<String>();
+
+      for (String root : _roots)
+        if (affected.contains(root))
+          roots.add(root);
+
+      return roots;
+    }
+
+  /**
+   * Returns the roots that include, directly or not, a file that changed
+   * since it was read (see <tt>changedFiles()</tt>).
+   */
+  public final Set<String> affectedRoots ()
+    {
+      return affectedRoots(changedFiles());
+    }
+
+  /**
+   * Drops everything recorded for the files of the specified roots, and
+   * those roots themselves, so that reading them anew records them afresh.
+   * Files also included by other roots are kept.
+   */
+  public final synchronized void forget (Collection<String> roots)
+    {
+      HashSet<String> kept = new HashSet<String>();
+
+      for (String root : _roots)
+        if (!roots.contains(root))
+          closure(root,kept);
+
+      _roots.removeAll(roots);
+      _nodes.keySet().retainAll(kept);
+      _edges.removeIf(edge -> !kept.contains(edge._from));
+      _inclusions.clear();
+      _includers.clear();
+
+      for (Edge edge : _edges)
+        index(edge);
+    }
+
+  /**
+   * Empties this graph.
+   */
+  public final synchronized void clear ()
+    {
+      _nodes.clear();
+      _roots.clear();
+      _edges.clear();
+      _inclusions.clear();
+      _includers.clear();
+    }
+
+  /**
+   * Writes this graph to the specified file, computing the hashes not yet
+   * known. The graph is written to a temporary file first, then renamed,
+   * so that concurrent readers never see a partial graph.
+   *
+   * @throws    IOException (if an I/O error occurs)
+   */
+  public final synchronized void save (File file) throws IOException
+    {
+      for (Map.Entry<String,Node> entry : _nodes.entrySet())
+        hash(entry.getKey(),entry.getValue());
+
+      Path path = file.toPath().toAbsolutePath();
+      Path temp = Files.createTempFile(path.getParent(),path.getFileName().toString(),".tmp");
+
+      try
+        {
+          try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp))))
+            {
+              out.writeInt(MAGIC);
+              out.writeInt(VERSION);
+
+              out.writeInt(_nodes.size());
+              for (Map.Entry<String,Node> entry : _nodes.entrySet())
+                {
+                  Node node = entry.getValue();
+                  out.writeUTF(entry.getKey());
+                  out.writeLong(node.size);
+                  out.writeLong(node.lastModified);
+                  out.writeUTF(node.hash == null ? "" : node.hash);
+                }
+
+              out.writeInt(_roots.size());
+              for (String root : _roots)
+                out.writeUTF(root);
+
+              out.writeInt(_edges.size());
+              for (Edge edge : _edges)
+                {
+                  out.writeUTF(edge._from);
+                  out.writeUTF(edge._to);
+                  out.writeInt(edge._line);
+                  out.writeInt(edge._col);
+                }
+            }
+
+          try
+            {
+              Files.move(temp,path,StandardCopyOption.ATOMIC_MOVE);
+            }
+          catch (AtomicMoveNotSupportedException e)
+            {
+              Files.move(temp,path,StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+      finally
+        {
+          Files.deleteIfExists(temp);
+        }
+    }
+
+  /**
+   * Reads a graph written by <tt>save</tt> from the specified file.
+   *
+   * @throws    IOException (if an I/O error occurs, or the file does not
+   *            hold a graph of the current version)
+   */
+  public static IncludeGraph load (File file) throws IOException
+    {
+      IncludeGraph graph = new IncludeGraph();
+
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath()))))
+        {
+          if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            throw new IOException("Not an include graph of version "+VERSION+": "+file);
+
+          for (int i = in.readInt(); i > 0; i--)
+            {
+              Node node = new Node();
+              graph._nodes.put(in.readUTF(),node);
+              node.size = in.readLong();
+              node.lastModified = in.readLong();
+              node.hash = in.readUTF();
+              if (node.hash.isEmpty())
+                node.hash = null;
+            }
+
+          for (int i = in.readInt(); i > 0; i--)
+            graph.addRoot(in.readUTF());
+
+          for (int i = in.readInt(); i > 0; i--)
+            graph.addInclusion(in.readUTF(),in.readUTF(),in.readInt(),in.readInt());
+        }
+
+      return graph;
+    }
+
+  public synchronized String toString ()
+    {
+      return "<IncludeGraph: " + _roots.size() + " roots, " +
+             _nodes.size() + " files, " + _edges.size() + " inclusions>";
+    }
+
+  /* ======================================================================= */
+
+  /**
+   * Returns the node of the specified file, entering it if needed with the
+   * file's current size and modification time.
+   */
+  private final Node node (String file)
+    {
+      Node node = _nodes.get(file);
+
+      if (node == null)
+        {
+          _nodes.put(file,node = new Node());
+
+          BasicFileAttributes attributes = attributes(file);
+          if (attributes != null)
+            {
+              node.size = attributes.size();
+              node.lastModified = attributes.lastModifiedTime().toMillis();
+            }
+        }
+
+      return node;
+    }
+
+  /**
+   * Computes the hash of the specified file if not known yet, provided the
+   * file did not change since it was read.
+   */
+  private final void hash (String file, Node node)
+    {
+      if (node.hash != null || node.size < 0)
+        return;
+
+      try
+        {
+          byte[] contents = Files.readAllBytes(Paths.get(file));
+
+          if (!hasChanged(file,node) && contents.length == node.size)
+            node.hash = TokenCache.digest(contents);
+        }
+      catch (IOException e)
+        {
+        }
+    }
+
+  /**
+   * Returns whether the specified file's contents differ from those recorded
+   * in the specified node. A file whose size and modification time are those
+   * recorded is deemed unchanged without being read; otherwise, it is
+   * deemed changed unless its size is the same and its contents have the
+   * recorded hash, which must then be known.
+   */
+  private final boolean hasChanged (String file, Node node)
+    {
+      BasicFileAttributes attributes = attributes(file);
+
+      if (attributes == null)
+        return true;
+
+      if (attributes.size() == node.size && attributes.lastModifiedTime().toMillis() == node.lastModified)
+        return false;
+
+      if (node.hash == null || attributes.size() != node.size)
+        return true;
+
+      try
+        {
+          return !node.hash.equals(TokenCache.digest(Files.readAllBytes(Paths.get(file))));
+        }
+      catch (IOException e)
+        {
+          return true;
+        }
+    }
+
+  /**
+   * Adds the specified file and all the files it includes, directly or
+   * not, to the specified set.
+   */
+  private final void closure (String file, HashSet<String> files)
+    {
+      if (!files.add(file))
+        return;
+
+      ArrayList<Edge> inclusions = _inclusions.get(file);
+      if (inclusions != null)
+        for (Edge edge : inclusions)
+          closure(edge._to,files);
+    }
+
+  /**
+   * Enters the specified inclusion in the indices.
+   */
+  private final void index (Edge edge)
+    {
+      ArrayList<Edge> edges = _inclusions.get(edge._from);
+      if (edges == null)
+        _inclusions.put(edge._from,edges = new ArrayList<Edge>());
+      edges.add(edge);
+
+      edges = _includers.get(edge._to);
+      if (edges == null)
+        _includers.put(edge._to,edges = new ArrayList<Edge>());
+      edges.add(edge);
+    }
+
+  /**
+   * Returns a copy of the inclusions indexed under the specified file in
+   * the specified index.
+   */
+  private static List<Edge> edges (HashMap<String,ArrayList<Edge>> index, String file)
+    {
+      ArrayList<Edge> edges = index.get(file);
+
+      if (edges == null)
+        return Collections.emptyList();
+
+      return Collections.unmodifiableList(new ArrayList<Edge>(edges));
+    }
+
+  /**
+   * Returns the attributes of the specified file, or <tt>null</tt> if it
+   * cannot be accessed.
+   */
+  private static BasicFileAttributes attributes (String file)
+    {
+      try
+        {
+          return Files.readAttributes(Paths.get(file),BasicFileAttributes.class);
+        }
+      catch (IOException | RuntimeException e)
+        {
+          return null;
+        }
+    }
+}
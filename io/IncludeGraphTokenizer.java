@@ -0,0 +1,469 @@
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+// PLEASE DO NOT EDIT WITHOUT THE EXPLICIT CONSENT OF THE AUTHOR! \\
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+
+package hlt.language.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.ByteArrayOutputStream;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.ArrayList;
+
+import java.util.function.Supplier;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This is a tokenizer delivering the tokens of a file and of all the files
+ * it includes, transitively, where the inclusions are driven by directives
+ * found in the tokens themselves (see <tt>Directive</tt>). Rather than
+ * reading everything through a single <tt>IncludeReader</tt>, each distinct
+ * file is tokenized on its own, in parallel with the others, as soon as a
+ * directive including it is found; the token streams of the files, recorded
+ * with <tt>TokenCodec</tt>, are then replayed spliced together at their
+ * inclusion points. The time taken to build the whole stream is thus close
+ * to that taken to tokenize the largest file.
+ * <p>
+ * The tokens delivered, along with their files, lines, and columns, are
+ * those a tokenizer made by the same factory would deliver reading the root
+ * file through an <tt>IncludeReader</tt> (seamless or not) whose client
+ * calls <tt>include(String)</tt> with the name returned by the directive
+ * right after reading each token. When inclusions are not seamless, the
+ * inclusion seams are <tt>TT_SPECIAL</tt> tokens located as
+ * <tt>IO.SOI</tt> and <tt>IO.EOI</tt> would be by the
+ * <tt>IncludeReader</tt>: at the start of the included file, and at the
+ * point where the including file resumes, which is right after the latest
+ * character the tokenizer had read when the directive was recognized (even
+ * if its reader was read further ahead).
+ * <p>
+ * <b>NB:</b> since each file is tokenized on its own, a token never spans
+ * an inclusion seam. This makes no difference when inclusions are not
+ * seamless, nor when each included file ends, and each directive is
+ * followed, by a character ending any token (such as an end of line), as is
+ * usually the case. Otherwise, seamless inclusions do not deliver the
+ * tokens a single <tt>IncludeReader</tt> would, where a token may start in
+ * one file and end in another, and should not be used. A circular
+ * inclusion is detected, and reported by throwing a
+ * <tt>CircularInclusionException</tt>, before any token is delivered.
+ *
+ * @see         TokenCodec
+ * @see         IncludeReader
+ */
+
+public class IncludeGraphTokenizer extends AbstractStreamTokenizer
+{
+  /**
+   * The interface of include directive recognizers. A recognizer is made
+   * for each file, and told of each token read from that file in turn; it
+   * should not read tokens by itself.
+   */
+  public static interface Directive
+    {
+      /**
+       * Called after each token read by the specified tokenizer, returns the
+       * name of the file to include right after this token, or <tt>null</tt>
+       * if the tokens read so far do not call for an inclusion.
+       */
+      public String include (AbstractStreamTokenizer tokenizer) throws IOException;
+    }
+
+  /**
+   * Creates an <tt>IncludeGraphTokenizer</tt> for the specified root file,
+   * tokenizing files with tokenizers made by the specified factory, and
+   * recognizing inclusions with recognizers made by the specified supplier.
+   * Inclusions are seamless (see the note above on when they should not
+   * be) and their names are taken literally.
+   *
+   * @throws    IOException (if a file cannot be read or includes itself)
+   */
+  public IncludeGraphTokenizer (String root, TokenCache.Factory factory,
+                                Supplier<? extends Directive> directives)
+    throws IOException
+    {
+      this(root,factory,directives,null,true);
+    }
+
+  /**
+   * Creates an <tt>IncludeGraphTokenizer</tt> for the specified root file,
+   * tokenizing files with tokenizers made by the specified factory, and
+   * recognizing inclusions with recognizers made by the specified supplier.
+   * The names of included files are looked up in the specified include path
+   * unless it is <tt>null</tt> (as by <tt>IncludeReader.setIncludePath</tt>),
+   * and inclusions are seamless or not as specified (see the note above on
+   * when they should not be seamless).
+   *
+   * @throws    IOException (if a file cannot be read or includes itself)
+   */
+  public IncludeGraphTokenizer (String root, TokenCache.Factory factory,
+                                Supplier<? extends Directive> directives,
+                                IncludePath path, boolean isSeamless)
+    throws IOException
+    {
+      initializeCharInfo();
+
+      _factory = factory;
+      _directives = directives;
+      _includePath = path;
+      _isSeamless = isSeamless;
+
+      record(root);
+      check(root,new HashSet<Object>(),new FileIdentityCache());
+
+      _recordings.clear();
+      _frames.add(new Frame(_files.get(root),null));
+    }
+
+  /**
+   * Returns the number of distinct files tokenized.
+   */
+  public final int fileCount ()
+    {
+      return _files.size();
+    }
+
+  /**
+   * Reads a token and returns its type, which is also the value of <tt>ttype</tt>.
+   * Once all the tokens have been delivered, this keeps returning <tt>TT_EOF</tt>.
+   */
+  public final int nextToken () throws IOException
+    {
+      if (pushedBack)
+        {
+          pushedBack = false;
+          return ttype;
+        }
+
+      if (hasQueuedTokens())
+        return dequeueToken();
+
+      return scanNextToken();
+    }
+
+  final int scanToken () throws IOException
+    {
+      for (;;)
+        {
+          Frame frame = _frames.get(_frames.size()-1);
+
+          if (frame.next < frame.file.inclusions.length
+              && frame.file.inclusions[frame.next].after == frame.count)
+            {
+              Inclusion inclusion = frame.file.inclusions[frame.next++];
+              _frames.add(new Frame(_files.get(inclusion.file),inclusion));
+
+              if (!_isSeamless)
+                return seam(inclusion.file,1,0);
+
+              continue;
+            }
+
+          frame.replay.nextToken();
+
+          if (frame.replay.ttype == TT_EOF && frame.inclusion != null)
+            {
+              _frames.remove(_frames.size()-1);
+
+              if (!_isSeamless)
+                return seam(_frames.get(_frames.size()-1).file.name,
+                            frame.inclusion.line,frame.inclusion.col);
+
+              continue;
+            }
+
+          frame.count++;
+          return copy(frame.replay);
+        }
+    }
+
+  /**
+   * This has no effect on a spliced token stream.
+   */
+  public final void commentChar (int c)
+    {
+    }
+
+  /**
+   * This has no effect on a spliced token stream.
+   */
+  public final void slashSlashComments (boolean flag)
+    {
+    }
+
+  /**
+   * This has no effect on a spliced token stream.
+   */
+  public final void slashStarComments (boolean flag)
+    {
+    }
+
+  /**
+   * This has no effect on a spliced token stream.
+   */
+  public final void enableComments ()
+    {
+    }
+
+  /**
+   * This has no effect on a spliced token stream.
+   */
+  public final void disableComments ()
+    {
+    }
+
+  //\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+  // The following are private facilities...
+  //\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+
+  /**
+   * An inclusion: the number of tokens of the including file preceding it,
+   * the name of the included file, and the position at which the including
+   * file resumes.
+   */
+  private static final class Inclusion
+    {
+      final long after;
+      final String file;
+      final int line;
+      final int col;
+
+      Inclusion (long after, String file, int line, int col)
+        {
+          this.after = after;
+          this.file = file;
+          this.line = line;
+          this.col = col;
+        }
+    }
+
+  /**
+   * The recorded tokens of a file, along with the inclusions they call for,
+   * in order.
+   */
+  private static final class Recording
+    {
+      final String name;
+      final byte[] tokens;
+      final Inclusion[] inclusions;
+
+      Recording (String name, byte[] tokens, Inclusion[] inclusions)
+        {
+          this.name = name;
+          this.tokens = tokens;
+          this.inclusions = inclusions;
+        }
+    }
+
+  /**
+   * A file being replayed: the replay of its recorded tokens, the number of
+   * tokens replayed so far, the index of its next inclusion, and the
+   * inclusion it is replayed for (<tt>null</tt> for the root file).
+   */
+  private static final class Frame
+    {
+      final Recording file;
+      final ReplayStreamTokenizer replay;
+      final Inclusion inclusion;
+      long count = 0;
+      int next = 0;
+
+      Frame (Recording file, Inclusion inclusion) throws IOException
+        {
+          this.file = file;
+          this.inclusion = inclusion;
+          replay = new ReplayStreamTokenizer(file.tokens);
+        }
+    }
+
+  private final TokenCache.Factory _factory;
+  private final Supplier<? extends Directive> _directives;
+  private final IncludePath _includePath;
+  private final boolean _isSeamless;
+
+  /**
+   * The tokenizations of the files, by name, pending or done.
+   */
+  private final ConcurrentHashMap<String,Future<Recording>> _recordings
+    = new ConcurrentHashMap<String,Future<Recording>>();
+
+  /**
+   * The recordings of the files, by name.
+   */
+  private final HashMap<String,Recording> _files = new HashMap<String,Recording>();
+
+  /**
+   * The files being replayed, the innermost last.
+   */
+  private final ArrayList<Frame> _frames = new ArrayList<Frame>();
+
+  /**
+   * Starts tokenizing the specified file in the background, unless it is
+   * already being or has been tokenized.
+   */
+  private final void record (String file)
+    {
+      _recordings.computeIfAbsent(file,name -> Prefetch.executor().submit(() -> tokenize(name)));
+    }
+
+  /**
+   * Tokenizes the specified file and records its tokens, starting to
+   * tokenize each file it includes as soon as it is found.
+   */
+  private final Recording tokenize (String file) throws IOException
+    {
+      final IncludeReader reader = new IncludeReader(file);
+      final Directive directive = _directives.get();
+      final ArrayList<Inclusion> inclusions = new ArrayList<Inclusion>();
+      ByteArrayOutputStream tokens = new ByteArrayOutputStream(1024);
+
+      try
+        {
+          TokenCodec.encode(_factory.tokenizer(reader),tokens,(tokenizer,count) ->
+            {
+              String name = directive.include(tokenizer);
+
+              if (name != null)
+                {
+                  // the including file resumes right after the latest
+                  // character the tokenizer has read, not where the
+                  // reader stands if the tokenizer reads ahead:
+                  LineIndex lines = tokenizer.followingCharLines;
+                  int offset = tokenizer.followingCharOffset;
+
+                  name = resolve(name);
+                  inclusions.add(new Inclusion(count,name,lines.line(offset),lines.column(offset)));
+                  record(name);
+                }
+            });
+        }
+      finally
+        {
+          reader.close();
+        }
+
+      return new Recording(file,tokens.toByteArray(),inclusions.toArray(new Inclusion[inclusions.size()]));
+    }
+
+  /**
+   * Returns the name of the file the specified name denotes given the
+   * include path, if any.
+   */
+  private final String resolve (String file)
+    {
+      if (_includePath == null)
+        return file;
+
+      String resolved = _includePath.resolve(file);
+      return resolved == null ? file : resolved;
+    }
+
+  /**
+   * Waits for the specified file and all those it includes to be
+   * tokenized, checking that none includes itself. The set holds the
+   * identities of the files on the current inclusion path.
+   */
+  private final void check (String file, HashSet<Object> path, FileIdentityCache identities)
+    throws IOException
+    {
+      Recording recording = await(file);
+      Object identity = identities.identity(file);
+
+      path.add(identity);
+
+      for (Inclusion inclusion : recording.inclusions)
+        {
+          if (path.contains(identities.identity(inclusion.file)))
+            throw new CircularInclusionException(inclusion.file);
+
+          if (!_files.containsKey(inclusion.file))
+            check(inclusion.file,path,identities);
+        }
+
+      path.remove(identity);
+    }
+
+  /**
+   * Waits for the specified file to be tokenized and returns its recording.
+   */
+  private final Recording await (String file) throws IOException
+    {
+      try
+        {
+          Recording recording = _recordings.get(file).get();
+          _files.put(file,recording);
+          return recording;
+        }
+      catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while tokenizing "+file);
+        }
+      catch (ExecutionException e)
+        {
+          Throwable cause = e.getCause();
+
+          if (cause instanceof IOException)
+            throw (IOException)cause;
+          if (cause instanceof RuntimeException)
+            throw (RuntimeException)cause;
+          if (cause instanceof Error)
+            throw (Error)cause;
+
+          throw new IOException(cause);
+        }
+    }
+
+  /**
+   * Makes the current token a copy of the specified tokenizer's.
+   */
+  private final int copy (AbstractStreamTokenizer t)
+    {
+      sval = t.sval;
+      nval = t.nval;
+      isInteger = t.isInteger;
+      leftQuote = t.leftQuote;
+      rightQuote = t.rightQuote;
+
+      currentCharFile = t.tokenStartFile;
+      currentCharLine = t.tokenStartLine;
+      currentCharCol  = t.tokenStartCol;
+      setStartLocation();
+
+      currentCharFile = t.tokenEndFile;
+      currentCharLine = t.tokenEndLine;
+      currentCharCol  = t.tokenEndCol;
+      setEndLocation();
+
+      return (ttype = t.ttype);
+    }
+
+  /**
+   * Makes the current token an inclusion seam at the specified position.
+   */
+  private final int seam (String file, int line, int col)
+    {
+      sval = null;
+      nval = Double.NaN;
+      isInteger = false;
+
+      currentCharFile = file;
+      currentCharLine = line;
+      currentCharCol  = col;
+      setStartLocation();
+      setEndLocation();
+
+      return (ttype = TT_SPECIAL);
+    }
+
+  final void readFollowingChar () throws IOException
+    {
+    }
+
+  final void readDecimal () throws IOException
+    {
+    }
+}
@@ -0,0 +1,338 @@
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+// PLEASE DO NOT EDIT WITHOUT THE EXPLICIT CONSENT OF THE AUTHOR! \\
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+
+package hlt.language.io;
+
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchKey;
+import java.nio.file.FileSystems;
+import java.nio.file.WatchService;
+import java.nio.file.DirectoryStream;
+import java.nio.file.InvalidPathException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.StandardWatchEventKinds;
+
+import java.util.List;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This is a list of directories in which the relative names of included
+ * files are looked up, in order, as with the <tt>-I</tt> option of C
+ * preprocessors (see <tt>IncludeReader.setIncludePath</tt>). A name
+ * resolves to the first directory containing an entry of that name.
+ * <p>
+ * Rather than probing the file system for each name in each directory,
+ * an <tt>IncludePath</tt> lists each directory it looks into once, and
+ * looks names up in these listings. Besides, the outcome of each lookup,
+ * be it found or not, is remembered, so that resolving a name already
+ * resolved costs a single hash lookup.
+ * <p>
+ * The listings are snapshots: files created or deleted after a directory
+ * was listed are not seen until <tt>refresh()</tt> is called, or, if the
+ * directories are watched (see <tt>watch()</tt>), until a thread waiting
+ * for changes in them notices the change, shortly after it. Lookups thus
+ * never wait on the file system, except in directories that cannot be
+ * watched, which are listed anew for each lookup. An <tt>IncludePath</tt> may be shared by
+ * include readers running in different threads.
+ *
+ * @see         IncludeReader
+ */
+
+public class IncludePath
+{
+  /**
+   * The value remembered for a name found in none of the directories.
+   */
+  private static final String NOT_FOUND = new String("");
+
+  /**
+   * The directories, in search order.
+   */
+  private final ArrayList<Path> _directories = new ArrayList<Path>();
+
+  /**
+   * The outcome of the lookups done so far: the resolved file name, or
+   * <tt>NOT_FOUND</tt>.
+   */
+  private final ConcurrentHashMap<String,String> _resolved = new ConcurrentHashMap<String,String>();
+
+  /**
+   * The listings of the directories looked into so far (guarded by
+   * <tt>this</tt>).
+   */
+  private final HashMap<Path,HashSet<String>> _listings = new HashMap<Path,HashSet<String>>();
+
+  /**
+   * Whether the outcome of the lookup in progress may be remembered: it may
+   * not when the directories are watched but one it looked into could not
+   * be (guarded by <tt>this</tt>).
+   */
+  private boolean _isCacheable;
+
+  /**
+   * The service watching the listed directories, or <tt>null</tt> if they
+   * are not watched (guarded by <tt>this</tt>).
+   */
+  private volatile WatchService _watcher;
+
+  /**
+   * Constructs an <tt>IncludePath</tt> with the specified directories, in
+   * search order.
+   */
+  public IncludePath (String... directories)
+    {
+      for (String directory : directories)
+        addDirectory(directory);
+    }
+
+  /**
+   * Appends the specified directory to the search order.
+   */
+  public final synchronized void addDirectory (String directory)
+    {
+      _directories.add(Paths.get(directory));
+      _resolved.clear();
+    }
+
+  /**
+   * Returns the directories, in search order.
+   */
+  public final synchronized List<Path> directories ()
+    {
+      return Collections.unmodifiableList(new ArrayList<Path>(_directories));
+    }
+
+  /**
+   * Returns the name of the file the specified name denotes: the file of
+   * that name in the first directory containing one, or <tt>null</tt> if
+   * there is none. An absolute name is returned as is.
+   */
+  public final String resolve (String name)
+    {
+      String file = _resolved.get(name);
+
+      if (file == null)
+        file = lookup(name);
+
+      return file == NOT_FOUND ? null : file;
+    }
+
+  /**
+   * Forgets all the directory listings and lookup outcomes, so that the
+   * directories are listed anew as needed.
+   */
+  public final synchronized void refresh ()
+    {
+      _listings.clear();
+      _resolved.clear();
+    }
+
+  /**
+   * Starts watching the listed directories, so that creating or deleting
+   * files in them is taken into account by the lookups following it, once
+   * a daemon thread waiting for changes has noticed it. This does nothing
+   * if they are already watched.
+   *
+   * @throws    IOException (if the directories cannot be watched)
+   */
+  public final synchronized void watch () throws IOException
+    {
+      if (_watcher != null)
+        return;
+
+      final WatchService watcher = FileSystems.getDefault().newWatchService();
+
+      _watcher = watcher;
+      refresh();
+
+      Thread thread = new Thread(() -> await(watcher),"hlt.language.io.IncludePath");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+  /**
+   * Returns whether the directories are watched.
+   */
+  public final boolean isWatched ()
+    {
+      return _watcher != null;
+    }
+
+  /**
+   * Stops watching the directories, if they are watched, which ends the
+   * thread waiting for changes in them.
+   *
+   * @throws    IOException (if an I/O error occurs)
+   */
+  public final synchronized void close () throws IOException
+    {
+      if (_watcher == null)
+        return;
+
+      _watcher.close();
+      _watcher = null;
+    }
+
+  public String toString ()
+    {
+      return "<IncludePath: " + directories() + ">";
+    }
+
+  /* ======================================================================= */
+
+  /**
+   * Looks the specified name up in the directory listings, and remembers
+   * the outcome.
+   */
+  private final synchronized String lookup (String name)
+    {
+      _isCacheable = true;
+
+      String file = find(name);
+
+      if (_isCacheable)
+        _resolved.put(name,file);
+
+      return file;
+    }
+
+  private final String find (String name)
+    {
+      Path path;
+
+      try
+        {
+          path = Paths.get(name);
+        }
+      catch (InvalidPathException e)
+        {
+          return NOT_FOUND;
+        }
+
+      if (path.isAbsolute())
+        return name;
+
+      for (Path directory : _directories)
+        if (contains(directory,path))
+          return directory.resolve(path).toString();
+
+      return NOT_FOUND;
+    }
+
+  /**
+   * Returns whether the specified directory contains the specified relative
+   * path, looking each element of the path up in the listing of its parent.
+   * A path going up the hierarchy is checked directly on the file system.
+   */
+  private final boolean contains (Path directory, Path path)
+    {
+      int count = path.getNameCount();
+
+      for (int i = 0; i < count; i++)
+        {
+          String element = path.getName(i).toString();
+
+          if (element.equals(".") || element.equals(".."))
+            {
+              // no change to such a path would be noticed:
+              if (_watcher != null)
+                _isCacheable = false;
+
+              return Files.exists(directory.resolve(path.subpath(i,count)));
+            }
+
+          if (!listing(directory).contains(element))
+            return false;
+
+          directory = directory.resolve(element);
+        }
+
+      return true;
+    }
+
+  /**
+   * Returns the listing of the specified directory, listing it if needed. A
+   * path that is not a readable directory has an empty listing. When the
+   * directories are watched, a directory is registered with the watch
+   * service before it is listed, so that no change following the listing
+   * goes unnoticed; the listing of a directory that cannot be watched (one
+   * that does not exist, or past the system's limit on watches) is not
+   * kept, and neither is the outcome of the lookup in progress.
+   */
+  private final HashSet<String> listing (Path directory)
+    {
+      HashSet<String> listing = _listings.get(directory);
+
+      if (listing != null)
+        return listing;
+
+      boolean isKept = true;
+
+      if (_watcher != null)
+        try
+          {
+            directory.register(_watcher,
+                               StandardWatchEventKinds.ENTRY_CREATE,
+                               StandardWatchEventKinds.ENTRY_DELETE);
+          }
+        catch (IOException | ClosedWatchServiceException e)
+          {
+            isKept = false;
+            _isCacheable = false;
+          }
+
+      listing = new HashSet<String>();
+
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory))
+        {
+          for (Path entry : entries)
+            listing.add(entry.getFileName().toString());
+        }
+      catch (IOException e)
+        {
+        }
+
+      if (isKept)
+        _listings.put(directory,listing);
+
+      return listing;
+    }
+
+  /**
+   * Waits for changes in the directories watched by the specified service
+   * until it is closed, dropping the listings of those that changed along
+   * with all the lookup outcomes. This runs in a thread of its own, so that
+   * lookups need not poll the service.
+   */
+  private final void await (WatchService watcher)
+    {
+      try
+        {
+          for (;;)
+            {
+              WatchKey key = watcher.take();
+
+              synchronized (this)
+                {
+                  key.pollEvents();
+                  _listings.remove((Path)key.watchable());
+                  _resolved.clear();
+                  key.reset();
+                }
+            }
+        }
+      catch (ClosedWatchServiceException | InterruptedException e)
+        {
+        }
+    }
+}
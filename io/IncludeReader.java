@@ -10,17 +10,28 @@ package hlt.language.io;
  * @copyright   &copy; <a href="http://www.hassan-ait-kaci.net/">by the author</a>
  */
 
-import hlt.language.util.Stack;
 import hlt.language.tools.Misc;
 import hlt.language.tools.Debug;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Objects;
 import java.io.Reader;
-import java.io.FileReader;
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.FileNotFoundException;
 
+import java.nio.CharBuffer;
+
+import java.nio.charset.Charset;
+
+import java.nio.file.Path;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.AccessDeniedException;
+
 /**
  * This class implements a Reader that may include another Reader
  * in midstream reading, and eventually resume reading at that point
@@ -45,9 +56,18 @@ import java.io.FileNotFoundException;
  * actively included. However, this can be done for <tt>IncludeReader</tt>s
  * constructed from file readers by using the <tt>IncludeReader(String)</tt>
  * constructor and the <tt>include(String)</tt> method, which provide
- * identifiable file names. For file readers included using this
+ * identifiable file names (or names of sources held in memory; see
+ * <tt>VirtualSourceRegistry</tt>). For file readers included using this
  * constructor and method, any circular inclusion will be detected
- * and cause a <tt>CircularInclusionException</tt> to be thrown.
+ * and cause a <tt>CircularInclusionException</tt> to be thrown. Files
+ * are identified regardless of the names used for them (relative paths,
+ * symbolic links, <i>etc.</i>), each distinct name being resolved only
+ * once (see <tt>FileIdentityCache</tt>).
+ * <p>
+ * A gzip file (named with the extension <tt>.gz</tt>) or an entry of a zip
+ * or jar archive (named <tt><i>archive</i>.zip!<i>entry</i></tt>) is
+ * decompressed as it is read, ahead of the reader (see
+ * <tt>CompressedSource</tt>).
  *
  * @see CircularInclusionException
  */
@@ -66,24 +86,65 @@ public class IncludeReader extends Reader
   private String _file;
 
   /**
-   * The current line number of the current reader.
+   * The index of the line breaks of the current reader, from which the
+   * current line and column numbers are computed when needed.
+   */
+  private LineIndex _lines = new LineIndex();
+
+  /**
+   * The number of characters read so far from the current reader.
+   */
+  private int _offset = 0;
+
+  /**
+   * The source position of the start of the current reader, so that the
+   * current source position is <tt>_base + _offset</tt> (see
+   * <tt>getSourcePosition()</tt>).
+   */
+  private long _base = 0;
+
+  /**
+   * The stack recording the suspended readers, kept as parallel arrays
+   * indexed by depth, so that an inclusion allocates nothing for it: the
+   * reader, file, line index, offset, and source map source number of each
+   * suspended reader, along with the identity it was recorded by in
+   * <tt>_dejaVu</tt>, the flight recorder event timing its inclusion, and
+   * the characters taken back from it (see <tt>unread</tt>).
+   * The arrays are grown geometrically as needed.
+   */
+  private Reader[] _readers = new Reader[INITIAL_STACK_SIZE];
+  private String[] _files = new String[INITIAL_STACK_SIZE];
+  private LineIndex[] _lineIndexes = new LineIndex[INITIAL_STACK_SIZE];
+  private int[] _offsets = new int[INITIAL_STACK_SIZE];
+  private int[] _sources = new int[INITIAL_STACK_SIZE];
+  private Object[] _fileIdentities = new Object[INITIAL_STACK_SIZE];
+  private IOEvents.InclusionEnd[] _events = new IOEvents.InclusionEnd[INITIAL_STACK_SIZE];
+  private CharBuffer[] _pushbacks = new CharBuffer[INITIAL_STACK_SIZE];
+
+  /**
+   * The number of suspended readers.
    */
-  private int _line = 1;
+  private int _depth = 0;
+
+  private static final int INITIAL_STACK_SIZE = 8;
 
   /**
-   * The current column number on the current line of the current reader.
+   * The identities of the files currently being actively included.
    */
-  private int _col = 0;
+  private HashSet<Object> _dejaVu = new HashSet<Object>();
 
   /**
-   * The stack recording the suspended readers.
+   * The identity of the current file as recorded in <tt>_dejaVu</tt> when
+   * it was opened, or <tt>null</tt> if it is not a file. This is what is
+   * forgotten once it has been read, whatever its name denotes by then
+   * (e.g., if it has been unregistered from the virtual sources).
    */
-  private Stack _readerStack = new Stack();
+  private Object _identity;
 
   /**
-   * The set of files currently being actively included.
+   * The cache of the identities of the files named so far.
    */
-  private HashSet _dejaVu = new HashSet();
+  private FileIdentityCache _identities = new FileIdentityCache();
 
   /**
    * A flag indicating whether inclusions are seamless.
@@ -108,6 +169,90 @@ public class IncludeReader extends Reader
    */
   private int _chr = IO.SOI;
 
+  /**
+   * A flag indicating whether files are included at most once.
+   */
+  private boolean _isIncludeOnce = false;
+
+  /**
+   * A flag indicating whether an inclusion skipped because of the include
+   * once policy reads as an empty inclusion when not seamless.
+   */
+  private boolean _marksSkippedInclusions = false;
+
+  /**
+   * The identities of the files completely read while including at most
+   * once (see <tt>FileIdentityCache</tt>).
+   */
+  private HashSet<Object> _completed = new HashSet<Object>();
+
+  /**
+   * Sets or unsets the include once policy, which is unset by default. When
+   * set, including a file that has already been completely read since the
+   * policy was set does nothing, as if the file had a <tt>#pragma once</tt>
+   * guard. Files are identified as for circular inclusion detection, so
+   * that different names of the same file are recognized.
+   */
+  public final void setIncludeOnce (boolean flag)
+    {
+      setIncludeOnce(flag,false);
+    }
+
+  /**
+   * Sets or unsets the include once policy as <tt>setIncludeOnce(boolean)</tt>
+   * does. If <tt>markSkipped</tt> is <tt>true</tt>, a skipped inclusion still
+   * reads as an <tt>IO.SOI</tt> immediately followed by an <tt>IO.EOI</tt>
+   * when not in seamless mode, so that clients may see that an inclusion
+   * took place.
+   */
+  public final void setIncludeOnce (boolean flag, boolean markSkipped)
+    {
+      _isIncludeOnce = flag;
+      _marksSkippedInclusions = markSkipped;
+
+      if (!flag)
+        _completed.clear();
+    }
+
+  /**
+   * Returns <tt>true</tt> iff files are included at most once.
+   */
+  public final boolean isIncludeOnce ()
+    {
+      return _isIncludeOnce;
+    }
+
+
+  /**
+   * The metrics recording the inclusions, if any.
+   */
+  private TokenizerMetrics _metrics;
+
+  /**
+   * The flight recorder event timing the current inclusion, or <tt>null</tt>
+   * if there is none (see <tt>IOEvents</tt>).
+   */
+  private IOEvents.InclusionEnd _inclusionEvent;
+
+  /**
+   * Sets the metrics recording the files opened and the inclusion depth
+   * reached by this reader from now on (see <tt>TokenizerMetrics</tt>), or
+   * stops recording them if <tt>metrics</tt> is <tt>null</tt>.
+   */
+  public final void setMetrics (TokenizerMetrics metrics)
+    {
+      _metrics = metrics;
+    }
+
+  /**
+   * Returns the metrics recording the inclusions of this reader, or
+   * <tt>null</tt> if there are none.
+   */
+  public final TokenizerMetrics getMetrics ()
+    {
+      return _metrics;
+    }
+
   // HAK 2 HAK: the constructors should throw an exception if used with a
   // reader of type hlt.language.io.LAReader!!!
 
@@ -126,9 +271,443 @@ public class IncludeReader extends Reader
    */
   public IncludeReader (String file) throws FileNotFoundException
     {
-      _reader = new BufferedReader(new FileReader(file));
+      _reader = open(file,null,_charset);
       _file = file;
-      _dejaVu.add(file);
+      _dejaVu.add(_identity = _identities.identity(file));
+    }
+
+  /**
+   * Constructs an <tt>IncludeReader</tt> with the specified file, decoding
+   * it and all the files it includes with the specified charset.
+   *
+   * @throws    FileNotFoundException (if the specified file cannot be opened)
+   */
+  public IncludeReader (Path file, Charset charset) throws FileNotFoundException
+    {
+      _charset = Objects.requireNonNull(charset);
+      _file = file.toString();
+      _reader = open(_file,null,charset);
+      _dejaVu.add(_identity = _identities.identity(_file));
+    }
+
+  /**
+   * Constructs an <tt>IncludeReader</tt> with the specified file name, reading
+   * it and all the files it includes through the specified source cache.
+   *
+   * @throws    IOException (if the specified file cannot be read)
+   */
+  public IncludeReader (String file, SourceCache cache) throws IOException
+    {
+      _sourceCache = cache;
+      _reader = open(file);
+      _file = file;
+      _dejaVu.add(_identity = _identities.identity(file));
+    }
+
+  /**
+   * Limits the number of files open at once by all the
+   * <tt>IncludeReader</tt>s in the process (or more precisely, by all the
+   * <tt>FileChannelReader</tt>s through which they read files) to the
+   * specified number, or lifts the limit if it is not positive, which is
+   * the default. Opening a file past the limit waits until another one is
+   * closed. An <tt>IncludeReader</tt> closes the file it is reading from
+   * when it includes another one, and reopens it where it was left when it
+   * resumes reading it; it keeps at most one file open, besides those being
+   * prefetched, so that deep inclusions do not exhaust file descriptors.
+   * The files already open do not count against a new limit.
+   * <p>
+   * <b>NB:</b> compressed sources (see <tt>CompressedSource</tt>) are exempt
+   * from the limit: such a source cannot be reopened where it was left
+   * without decompressing it again from the start, so its file (or
+   * archive) stays open, even while suspended, until it is read to the end
+   * or closed, and does not count against the limit.
+   */
+  public static final void setOpenFileLimit (int limit)
+    {
+      FileChannelReader.setOpenFileLimit(limit);
+    }
+
+  /**
+   * Returns the maximum number of files open at once by all the
+   * <tt>IncludeReader</tt>s in the process, or 0 if there is none.
+   */
+  public static final int getOpenFileLimit ()
+    {
+      return FileChannelReader.getOpenFileLimit();
+    }
+
+  /**
+   * The charset with which files read directly are decoded.
+   */
+  private Charset _charset = Charset.defaultCharset();
+
+  /**
+   * Makes files included from now on, if read directly, be decoded with the
+   * specified charset; the default is the platform's. (Files read through a
+   * source cache are decoded with the cache's charset.)
+   */
+  public final void setCharset (Charset charset)
+    {
+      _charset = Objects.requireNonNull(charset);
+    }
+
+  /**
+   * Returns the charset with which files read directly are decoded.
+   */
+  public final Charset getCharset ()
+    {
+      return _charset;
+    }
+
+  /**
+   * The cache through which files are read, or <tt>null</tt> if they are read
+   * directly.
+   */
+  private SourceCache _sourceCache;
+
+  /**
+   * Makes files included from now on be read through the specified cache
+   * (typically <tt>SourceCache.shared()</tt>), or directly if it is
+   * <tt>null</tt>, which is the default.
+   */
+  public final void setSourceCache (SourceCache cache)
+    {
+      _sourceCache = cache;
+    }
+
+  /**
+   * Returns the cache through which files are read, or <tt>null</tt> if they
+   * are read directly.
+   */
+  public final SourceCache getSourceCache ()
+    {
+      return _sourceCache;
+    }
+
+  /**
+   * The graph in which the inclusions are recorded, or <tt>null</tt> if
+   * they are not.
+   */
+  private IncludeGraph _includeGraph;
+
+  /**
+   * Makes the inclusions of files done from now on be recorded in the
+   * specified graph, or not recorded if it is <tt>null</tt>, which is the
+   * default. The current file, if any and if not included, is recorded as
+   * a root.
+   */
+  public final void setIncludeGraph (IncludeGraph graph)
+    {
+      _includeGraph = graph;
+
+      if (graph != null && _file != null && isOutermost())
+        graph.addRoot(_file);
+    }
+
+  /**
+   * Returns the graph in which the inclusions are recorded, or <tt>null</tt>
+   * if they are not.
+   */
+  public final IncludeGraph getIncludeGraph ()
+    {
+      return _includeGraph;
+    }
+
+  /**
+   * The map from source positions to locations, if any, and the number of
+   * the current reader's source in it (-1 if it is not recorded).
+   */
+  private SourceMap _sourceMap;
+  private int _source = -1;
+
+  /**
+   * Makes the positions of the characters read from now on be mapped to
+   * their locations in the specified source map, or not mapped if it is
+   * <tt>null</tt>, which is the default. The map should be a new one, since
+   * it records the positions of this reader only (see
+   * <tt>getSourcePosition()</tt>).
+   */
+  public final void setSourceMap (SourceMap map)
+    {
+      _sourceMap = map;
+      _source = -1;
+      Arrays.fill(_sources,0,_depth,-1);
+
+      if (map != null)
+        {
+          _source = map.addSource(_file,_lines);
+          map.addInterval(getSourcePosition(),_source,_offset);
+        }
+    }
+
+  /**
+   * Returns the map from source positions to locations, or <tt>null</tt> if
+   * positions are not mapped.
+   */
+  public final SourceMap getSourceMap ()
+    {
+      return _sourceMap;
+    }
+
+  /**
+   * Returns the source position of the latest character read, or of the
+   * latest inclusion seam if one was read since. Source positions increase
+   * by one with each character read and each inclusion seam, across all
+   * inclusions, and may be mapped to files, lines, and columns by a
+   * <tt>SourceMap</tt> (see <tt>setSourceMap</tt>).
+   */
+  public final long getSourcePosition ()
+    {
+      return _base + _offset;
+    }
+
+  /**
+   * The directories in which the relative names of included files are
+   * looked up, or <tt>null</tt> if names are taken literally.
+   */
+  private IncludePath _includePath;
+
+  /**
+   * Makes the names of files included from now on be looked up in the
+   * directories of the specified include path, or taken literally if it is
+   * <tt>null</tt>, which is the default. A name found in none of the
+   * directories is taken literally.
+   */
+  public final void setIncludePath (IncludePath path)
+    {
+      _includePath = path;
+    }
+
+  /**
+   * Returns the include path in which the names of included files are
+   * looked up, or <tt>null</tt> if they are taken literally.
+   */
+  public final IncludePath getIncludePath ()
+    {
+      return _includePath;
+    }
+
+  /**
+   * The registry of the sources held in memory that may be included by
+   * name, or <tt>null</tt> if there is none.
+   */
+  private VirtualSourceRegistry _virtualSources;
+
+  /**
+   * Makes the names registered in the specified registry denote the
+   * sources held in memory under them when included from now on (see
+   * <tt>include(String)</tt>), or no longer denote any if it is
+   * <tt>null</tt>, which is the default. Such a name is not looked up in the
+   * include path, and hides any file by the same name.
+   */
+  public final void setVirtualSources (VirtualSourceRegistry registry)
+    {
+      _virtualSources = registry;
+    }
+
+  /**
+   * Returns the registry of the sources held in memory that may be included
+   * by name, or <tt>null</tt> if there is none.
+   */
+  public final VirtualSourceRegistry getVirtualSources ()
+    {
+      return _virtualSources;
+    }
+
+  /**
+   * Returns <tt>true</tt> iff the specified name denotes a source held in
+   * memory.
+   */
+  private final boolean isVirtual (String name)
+    {
+      return _virtualSources != null && _virtualSources.contains(name);
+    }
+
+  /**
+   * Returns the identity of the source the specified name denotes: that of
+   * a source held in memory, or of a file (see <tt>FileIdentityCache</tt>).
+   */
+  private final Object identity (String file)
+    {
+      if (isVirtual(file))
+        return _virtualSources.identity(file);
+
+      return _identities.identity(file);
+    }
+
+  /**
+   * Returns the name of the file the specified name denotes given the
+   * include path, if any, unless it denotes a source held in memory. Only
+   * the archive of an archive entry is looked up in the include path.
+   */
+  private final String resolve (String file)
+    {
+      if (_includePath == null || isVirtual(file))
+        return file;
+
+      int separator = CompressedSource.entrySeparator(file);
+
+      if (separator > 0)
+        {
+          String archive = _includePath.resolve(file.substring(0,separator));
+          return archive == null ? file : archive + file.substring(separator);
+        }
+
+      String resolved = _includePath.resolve(file);
+      return resolved == null ? file : resolved;
+    }
+
+  /**
+   * The files being prefetched, by name, or <tt>null</tt> if none ever was.
+   */
+  private HashMap<String,Prefetch> _prefetches;
+
+  /**
+   * The maximum number of characters read ahead per prefetched file.
+   */
+  private int _prefetchLimit = Prefetch.DEFAULT_LIMIT;
+
+  /**
+   * Sets the maximum number of characters read ahead per prefetched file
+   * (see <tt>prefetch(String)</tt>), which applies to files prefetched from
+   * now on.
+   */
+  public final void setPrefetchLimit (int limit)
+    {
+      if (limit <= 0)
+        throw new IllegalArgumentException("Non-positive prefetch limit: "+limit);
+
+      _prefetchLimit = limit;
+    }
+
+  /**
+   * Hints that the specified file is about to be included, and starts
+   * opening it and reading its first characters (at most as many as the
+   * prefetch limit) in the background, so that they are ready when
+   * <tt>include(String)</tt> is called with the same name. The name is
+   * resolved as for <tt>include(String)</tt>. This does nothing if the file
+   * is already being prefetched, if it is a source held in memory, or if it
+   * would not be read given the include once policy. Any error opening or
+   * reading the file is reported when it is actually included.
+   */
+  public final void prefetch (String file)
+    {
+      file = resolve(file);
+
+      if (_prefetches == null)
+        _prefetches = new HashMap<String,Prefetch>();
+      else
+        if (_prefetches.containsKey(file))
+          return;
+
+      if (isVirtual(file) || _isIncludeOnce && _completed.contains(identity(file)))
+        return;
+
+      final SourceCache cache = _sourceCache;
+      final Charset charset = _charset;
+      _prefetches.put(file,new Prefetch(file,name -> open(name,cache,charset),_prefetchLimit));
+    }
+
+  /**
+   * Cancels the prefetch of the specified file, if any, releasing what was
+   * read ahead and closing the file. Returns whether there was one.
+   */
+  public final boolean cancelPrefetch (String file)
+    {
+      if (_prefetches == null)
+        return false;
+
+      Prefetch prefetch = _prefetches.remove(resolve(file));
+
+      if (prefetch == null)
+        return false;
+
+      prefetch.cancel();
+      return true;
+    }
+
+  /**
+   * Cancels all the pending prefetches.
+   */
+  public final void cancelPrefetches ()
+    {
+      if (_prefetches == null)
+        return;
+
+      for (Prefetch prefetch : _prefetches.values())
+        prefetch.cancel();
+
+      _prefetches.clear();
+    }
+
+  /**
+   * Returns a reader for the specified file: one of the source held in
+   * memory under its name if there is one, the prefetched one if it is being
+   * prefetched, or else one through the source cache if there is one.
+   */
+  private final Reader open (String file) throws FileNotFoundException
+    {
+      if (_virtualSources != null)
+        {
+          Reader reader = _virtualSources.reader(file);
+          if (reader != null)
+            return reader;
+        }
+
+      if (_prefetches != null)
+        {
+          Prefetch prefetch = _prefetches.remove(file);
+          if (prefetch != null)
+            return prefetch.await();
+        }
+
+      return open(file,_sourceCache,_charset);
+    }
+
+  /**
+   * Returns a reader for the specified file: if it is compressed, one
+   * decompressing it as it is read (see <tt>CompressedSource</tt>);
+   * otherwise, one through the specified source cache if it is not
+   * <tt>null</tt>, or else through a file channel. Either decodes it with
+   * the specified charset.
+   */
+  private static final Reader open (String file, SourceCache cache, Charset charset)
+    throws FileNotFoundException
+    {
+      try
+        {
+          if (CompressedSource.isCompressed(file))
+            return CompressedSource.reader(file,charset);
+
+          if (cache == null)
+            {
+              Path path = Paths.get(file);
+
+              if (Files.isDirectory(path))
+                throw new FileNotFoundException(file+" (Is a directory)");
+
+              return new FileChannelReader(path,charset);
+            }
+
+          return cache.reader(file);
+        }
+      catch (FileNotFoundException e)
+        {
+          throw e;
+        }
+      catch (InvalidPathException e)
+        {
+          throw new FileNotFoundException(file+" (Invalid file path)");
+        }
+      catch (IOException e)
+        {
+          String reason = e instanceof NoSuchFileException   ? "No such file or directory"
+                        : e instanceof AccessDeniedException ? "Permission denied"
+                        : e.getMessage();
+          FileNotFoundException exception = new FileNotFoundException(file+" ("+reason+")");
+          exception.initCause(e);
+          throw exception;
+        }
     }
 
   /**
@@ -175,12 +754,29 @@ public class IncludeReader extends Reader
       return _chr;
     }
 
+  /**
+   * Returns the index of the line breaks of the current reader.
+   */
+  final LineIndex lineIndex ()
+    {
+      return _lines;
+    }
+
+  /**
+   * Returns the number of characters read so far from the current reader,
+   * whose line and column numbers are given by <tt>lineIndex()</tt>.
+   */
+  final int position ()
+    {
+      return _offset;
+    }
+
   /**
    * Returns the current line number of the current reader.
    */
   public final int getLineNumber ()
     {
-      return _line;
+      return _lines.line(_offset);
     }
 
   /**
@@ -188,7 +784,7 @@ public class IncludeReader extends Reader
    */
   public final int getColumnNumber ()
     {
-      return _col;
+      return _lines.column(_offset);
     }
 
   /**
@@ -198,10 +794,20 @@ public class IncludeReader extends Reader
    */
   public final void close () throws IOException
     {
+      cancelPrefetches();
       _reader.close();
 
-      while (!_readerStack.isEmpty())
-        ((ReaderStackElement)_readerStack.pop()).reader().close();
+      while (_depth > 0)
+        {
+          Reader reader = _readers[--_depth];
+          _readers[_depth] = null;
+          _files[_depth] = null;
+          _lineIndexes[_depth] = null;
+          _fileIdentities[_depth] = null;
+          _events[_depth] = null;
+          _pushbacks[_depth] = null;
+          reader.close();
+        }
     }
 
   /**
@@ -209,7 +815,7 @@ public class IncludeReader extends Reader
    */
   public final int depth ()
     {
-      return _readerStack.size();
+      return _depth;
     }
 
   /**
@@ -217,7 +823,7 @@ public class IncludeReader extends Reader
    */
   public final boolean isOutermost ()
     {
-      return _readerStack.isEmpty();
+      return _depth == 0;
     }
 
   /**
@@ -231,101 +837,261 @@ public class IncludeReader extends Reader
    */
   public final int read () throws IOException
     {
-      if (_isInclusionStart)
-        {
-          _isInclusionStart = false;
-          _chr = IO.SOI;
-        }
-      else
+      // a loop rather than recursion, so that seams skipped in seamless
+      // mode cost no stack, however many empty inclusions follow each other:
+      for (;;)
         {
-          _chr = _reader.read();
-
-          while (_chr == IO.EOF)
+          if (_isInclusionStart)
             {
+              _isInclusionStart = false;
+              _chr = IO.SOI;
+              _base += _offset + 1;
+              _lines = new LineIndex();
+              _offset = 0;
 
-              if (_readerStack.isEmpty())
+              if (_sourceMap != null)
                 {
-                  _chr = IO.EOF;
-		  _reachedEndOfInclusion = true;
-		  if (Debug.flagIsOn())
-		  	System.out.println("Reached the end of inclusion at depth "+depth());
-                  break;
+                  _source = _sourceMap.addSource(_file,_lines);
+                  _sourceMap.addInterval(_base,_source,0);
                 }
+            }
+          else
+            {
+              _chr = _pushback == null ? _reader.read() : readPushback();
 
-              _reader.close();
+              // only line breaks and backspaces need be recorded for the
+              // line and column numbers to be computed when needed:
+              if (_chr >= 0)
+                {
+                  if (_chr <= IO.EOL)
+                    if (_chr == IO.EOL)
+                      _lines.lineBreak(_offset);
+                    else
+                      if (_chr == IO.BSP)
+                        _lines.backspace(_offset);
+
+                  _offset++;
+                  return _chr;
+                }
 
-              if (_file != null)
-		_dejaVu.remove(_file);
+              if (_chr == IO.EOF)
+                {
+                  if (_depth == 0)
+                    {
+                      _reachedEndOfInclusion = true;
+                      if (Debug.flagIsOn())
+                        System.out.println("Reached the end of inclusion at depth "+depth());
+                      return IO.EOF;
+                    }
+
+                  pop();
+                  _chr = IO.EOI;
+                }
+            }
 
-              ReaderStackElement elt = (ReaderStackElement)_readerStack.pop();
+          if (!_isSeamless || (_chr != IO.SOI && _chr != IO.EOI))
+            return _chr;
+        }
+    }
 
-              _reader = elt.reader();
-              _file   = elt.file();
-              _line   = elt.line();
-              _col    = elt.col();
+  /**
+   * Closes the current reader, which has been read to the end, and resumes
+   * reading from the latest suspended one.
+   */
+  private final void pop () throws IOException
+    {
+      _reader.close();
 
-              _chr = IO.EOI;
-            }
+      if (_identity != null)
+        {
+          _dejaVu.remove(_identity);
+          if (_isIncludeOnce)
+            _completed.add(_identity);
         }
 
-      switch (_chr)
+      if (_inclusionEvent != null)
         {
-        case IO.SOI:
-          _line = 1;
-          _col = 0;
-          break;
-        case IO.EOI:
-        case IO.EOF:
-          break;
-        case IO.EOL:
-          _line++;
-          _col = 0;
-          break;
-        case IO.BSP:
-          if (_col > 0) _col--;
-          break;
-        default:
-          _col++;
+          _inclusionEvent.file = _file;
+          _inclusionEvent.depth = depth();
+          _inclusionEvent.lines = _lines.line(_offset);
+          _inclusionEvent.commit();
         }
 
-      if (_isSeamless && (_chr == IO.SOI || _chr == IO.EOI))
-        return read();
+      if (_sourceMap != null)
+        _lines.trim();
 
-      return _chr;
+      long start = _base + _offset + 1;
+      int top = --_depth;
+
+      _reader = _readers[top];
+      _file   = _files[top];
+      _lines  = _lineIndexes[top];
+      _offset = _offsets[top];
+      _source = _sources[top];
+      _identity = _fileIdentities[top];
+      _inclusionEvent = _events[top];
+      _pushback = _pushbacks[top];
+
+      _base = start - _offset;
+
+      if (_sourceMap != null)
+        {
+          if (_source < 0)
+            _source = _sourceMap.addSource(_file,_lines);
+
+          _sourceMap.addInterval(start,_source,_offset);
+        }
+
+      _readers[top] = null;
+      _files[top] = null;
+      _lineIndexes[top] = null;
+      _fileIdentities[top] = null;
+      _events[top] = null;
+      _pushbacks[top] = null;
     }
 
   /**
    * Suspends reading from the current reader and makes further reads
    * proceed with the specified reader. Reading from the suspended reader
    * at the exact point it was left resumes automatically upon reaching
-   * the end of the included reader.
-   *
+   * the end of the included reader. As the included reader has no file of
+   * its own, it is known by the name of the file it is included in (see
+   * <tt>getFile()</tt>), but is not taken for that file in detecting
+   * circular inclusions.
    */
   public final void include (Reader reader)
     {
-      _readerStack.push(new ReaderStackElement(_reader,_line,_col));
-      _reader = reader;
-      _isInclusionStart = true;
+      if (_lookahead != null)
+        _lookahead.giveBack();
+
+      Prefetch.suspend(_reader);
+      push(reader,_file,null,null);
+
+      if (TokenizerMetrics.ENABLED && _metrics != null)
+        _metrics.included(depth());
     }
 
   /**
    * Suspends reading from the current reader and makes further reads
    * proceed with a reader from the specified file. Reading from the
    * suspended file reader at the exact point it was left resumes
-   * automatically upon reaching the end of the included file.
+   * automatically upon reaching the end of the included file. The file is
+   * looked up in the include path, if any (see <tt>setIncludePath</tt>),
+   * and is thereafter known by the name it resolved to, unless the name is
+   * that of a source held in memory (see <tt>setVirtualSources</tt>), which
+   * is then read in place of a file. If the include
+   * once policy is set and the file has already been read, this does nothing
+   * (see <tt>setIncludeOnce(boolean,boolean)</tt>).
    *
    * @throws    FileNotFoundException (if the specified file does not exist)
    * @throws    CircularInclusionException (if trying to open an enclosing Reader)
    */
   public final void include (String file) throws FileNotFoundException, CircularInclusionException //, BogusException
     {
-      if (_dejaVu.contains(file))
+      if (_lookahead != null)
+        _lookahead.giveBack();
+
+      file = resolve(file);
+      Object identity = identity(file);
+
+      if (_dejaVu.contains(identity))
         throw new CircularInclusionException(file);
 
-      _readerStack.push(new ReaderStackElement(_reader,_file,_line,_col));
-      _reader = new BufferedReader(new FileReader(file));
+      if (_includeGraph != null)
+        _includeGraph.addInclusion(_file,file,getLineNumber(),getColumnNumber());
+
+      if (_isIncludeOnce && _completed.contains(identity))
+        {
+          cancelPrefetch(file);
+          if (_marksSkippedInclusions && !_isSeamless)
+            push(new CharSequenceReader(""),file,null,null);
+          return;
+        }
+
+      IOEvents.Include event = new IOEvents.Include();
+      event.begin();
+
+      // the current file is closed before the included one is opened, so
+      // that this never holds more than one while waiting for a permit:
+      Prefetch.suspend(_reader);
+      Reader reader = open(file);
+
+      event.end();
+
+      push(reader,file,identity,IOEvents.InclusionEnd.start());
+      _dejaVu.add(identity);
+
+      if (TokenizerMetrics.ENABLED && _metrics != null)
+        _metrics.fileOpened(depth());
+
+      if (event.shouldCommit())
+        {
+          event.file = file;
+          event.depth = depth();
+          long bytes = fileSize(reader);
+          if (bytes >= 0)
+            event.bytes = bytes;
+          event.commit();
+        }
+    }
+
+  /**
+   * Returns the size in bytes of the file read by the specified reader as
+   * opened by <tt>open(String)</tt>, or -1 if it does not read a file (such
+   * as a source held in memory or an archive entry) or its size cannot be
+   * known without reading the file again.
+   */
+  private static final long fileSize (Reader reader)
+    {
+      if (reader instanceof Prefetch)
+        reader = ((Prefetch)reader).reader();
+
+      try
+        {
+          return reader instanceof FileChannelReader ? ((FileChannelReader)reader).fileSize() : -1;
+        }
+      catch (IOException e)
+        {
+          return -1;
+        }
+    }
+
+  /**
+   * Suspends the current reader and makes the specified one current, the
+   * specified identity being that by which it is recorded in
+   * <tt>_dejaVu</tt>, if any.
+   */
+  private final void push (Reader reader, String file, Object identity, IOEvents.InclusionEnd event)
+    {
+      if (_depth == _readers.length)
+        {
+          int size = 2*_depth;
+          _readers = Arrays.copyOf(_readers,size);
+          _files = Arrays.copyOf(_files,size);
+          _lineIndexes = Arrays.copyOf(_lineIndexes,size);
+          _offsets = Arrays.copyOf(_offsets,size);
+          _sources = Arrays.copyOf(_sources,size);
+          _fileIdentities = Arrays.copyOf(_fileIdentities,size);
+          _events = Arrays.copyOf(_events,size);
+          _pushbacks = Arrays.copyOf(_pushbacks,size);
+        }
+
+      _readers[_depth] = _reader;
+      _files[_depth] = _file;
+      _lineIndexes[_depth] = _lines;
+      _offsets[_depth] = _offset;
+      // a reader included but not started yet has no source of its own:
+      _sources[_depth] = _isInclusionStart ? -1 : _source;
+      _fileIdentities[_depth] = _identity;
+      _events[_depth] = _inclusionEvent;
+      _pushbacks[_depth] = _pushback;
+      _depth++;
+
+      _reader = reader;
       _file = file;
-      _dejaVu.add(file);
+      _identity = identity;
+      _inclusionEvent = event;
+      _pushback = null;
       _isInclusionStart = true;
     }
 
@@ -336,6 +1102,12 @@ public class IncludeReader extends Reader
    * Read characters into a portion of an array. Note that if not in seamless mode,
    * IO.EOI and IO.SOI will be read into the array like any other character.
    *
+   * <p>
+   * Characters are read from the current underlying reader a whole span at
+   * a time, and the line and column numbers updated by one pass over the
+   * span. Inclusion seams are crossed through <tt>read()</tt>, so that the
+   * reader stack is maintained as it would be one character at a time.
+   *
    * @param     cbuf    Destination buffer
    * @param     off     Offset at which to start storing characters
    * @param     len     Maximum number of characters to read
@@ -344,23 +1116,146 @@ public class IncludeReader extends Reader
    */
   public int read (char[] cbuf, int off, int len) throws IOException
     {
-      int c;
+      Objects.checkFromIndexSize(off,len,cbuf.length);
+
       int count = 0;
 
-      while (off < cbuf.length && count < len)
-        switch (c = read())
-          {
-          case IO.EOF:
-            return c;
-          default:
-            cbuf[off] = (char)c;
-            off++;
-            count++;
-          }
+      while (count < len)
+        {
+          if (!_isInclusionStart)
+            {
+              int n = readCurrent(cbuf,off+count,len-count);
+              if (n > 0)
+                {
+                  advance(cbuf,off+count,n);
+                  return count+n;
+                }
+            }
+
+          // at a seam: the end of the current reader or the start of an inclusion
+          int c = read();
+          if (c == IO.EOF)
+            return count == 0 ? IO.EOF : count;
+
+          cbuf[off+count++] = (char)c;
+        }
 
       return count;
     }
 
+  /**
+   * Reads characters into a portion of an array as
+   * <tt>read(char[],int,int)</tt> does in seamless mode, but from a single
+   * reader: past an inclusion seam, only the first character after it is
+   * read. The characters read are thus all located by
+   * <tt>lineIndex()</tt>, <tt>position()</tt>, and
+   * <tt>getSourcePosition()</tt> once this returns (see <tt>LAReader</tt>).
+   */
+  final int readSpan (char[] cbuf, int off, int len) throws IOException
+    {
+      Objects.checkFromIndexSize(off,len,cbuf.length);
+
+      if (len == 0)
+        return 0;
+
+      if (!_isInclusionStart)
+        {
+          int n = readCurrent(cbuf,off,len);
+          if (n > 0)
+            {
+              advance(cbuf,off,n);
+              return n;
+            }
+        }
+
+      int c = read();
+      if (c == IO.EOF)
+        return IO.EOF;
+
+      cbuf[off] = (char)c;
+      return 1;
+    }
+
+  /**
+   * The characters taken back from the current reader and not read again
+   * yet, or <tt>null</tt> if there are none (see <tt>unread</tt>).
+   */
+  private CharBuffer _pushback;
+
+  /**
+   * The reader reading ahead from this one, if any, which gives back the
+   * characters it has not delivered yet whenever an inclusion starts (see
+   * <tt>LAReader</tt>).
+   */
+  private LAReader _lookahead;
+
+  /**
+   * Sets the reader reading ahead from this one.
+   */
+  final void setLookahead (LAReader lookahead)
+    {
+      _lookahead = lookahead;
+    }
+
+  /**
+   * Takes back the specified characters, which must be the latest ones
+   * read from the current reader, so that they are read again, after any
+   * inclusion starting now, with the same line and column numbers and
+   * source positions.
+   */
+  final void unread (char[] chars)
+    {
+      _offset -= chars.length;
+      _lines.truncate(_offset);
+
+      if (_pushback == null)
+        _pushback = CharBuffer.wrap(chars);
+      else
+        _pushback = CharBuffer.allocate(chars.length+_pushback.remaining()).put(chars).put(_pushback).flip();
+    }
+
+  /**
+   * Reads characters from the current reader into a portion of an array,
+   * starting with those taken back from it, if any.
+   */
+  private final int readCurrent (char[] cbuf, int off, int len) throws IOException
+    {
+      if (_pushback == null)
+        return _reader.read(cbuf,off,len);
+
+      int n = Math.min(len,_pushback.remaining());
+      _pushback.get(cbuf,off,n);
+
+      if (!_pushback.hasRemaining())
+        _pushback = null;
+
+      return n;
+    }
+
+  /**
+   * Returns the next character taken back from the current reader.
+   */
+  private final int readPushback ()
+    {
+      char c = _pushback.get();
+
+      if (!_pushback.hasRemaining())
+        _pushback = null;
+
+      return c;
+    }
+
+  /**
+   * Updates the line and column numbers, and the latest character, after
+   * the specified span of characters has been read from the current reader.
+   */
+  private final void advance (char[] cbuf, int off, int len)
+    {
+      _lines.scan(cbuf,off,len,_offset);
+      _offset += len;
+      _chr = cbuf[off+len-1];
+    }
+
   /**
    * Read characters into an array.
    *
@@ -389,21 +1284,48 @@ public class IncludeReader extends Reader
         throw new IllegalArgumentException
           ("Cannot skip negative number of chars: "+n);
 
-      int count = 0;
+      long count = 0;
+
       while (count < n)
-        switch (read())
-          {
-          case IO.EOF:
-            return count;
-          case IO.EOI: case IO.SOI:
-            continue;
-          default:
-            count++;
-          }
+        {
+          if (!_isInclusionStart)
+            {
+              if (_skipBuffer == null)
+                _skipBuffer = new char[SKIP_BUFFER_SIZE];
+
+              int k = readCurrent(_skipBuffer,0,(int)Math.min(n-count,SKIP_BUFFER_SIZE));
+              if (k > 0)
+                {
+                  advance(_skipBuffer,0,k);
+                  count += k;
+                  continue;
+                }
+            }
+
+          switch (read())
+            {
+            case IO.EOF:
+              return count;
+            case IO.EOI: case IO.SOI:
+              continue;
+            default:
+              count++;
+            }
+        }
 
       return count;
     }
 
+  /**
+   * The size of the buffer into which <tt>skip(long)</tt> reads.
+   */
+  private static final int SKIP_BUFFER_SIZE = 8192;
+
+  /**
+   * The buffer into which <tt>skip(long)</tt> reads, allocated on first use.
+   */
+  private char[] _skipBuffer;
+
   /**
    * This method is a simple delegation to the current underlying Reader.
    * Note that this way of handling it does not take into account other
@@ -412,7 +1334,7 @@ public class IncludeReader extends Reader
    */
    public boolean ready () throws IOException
     {
-      return _reader.ready();
+      return _pushback != null || _reader.ready();
     }
 
   /**
@@ -454,58 +1376,9 @@ public class IncludeReader extends Reader
   public final String toString ()
     {
       return "<File: "   + getFile() +
-            ", Line: "   + _line +
-            ", Column: " + _col  +
+            ", Line: "   + getLineNumber() +
+            ", Column: " + getColumnNumber() +
             ", Char: '"  + Misc.pform(_chr) +
             "'>";
     }
-
-  // Ancillary class definition...
-
-  /**
-   * The data structure for elements pushed on the reader stack.
-   * It consists simply of a quadruple <tt>&lt;reader,file,line,column&gt;</tt>.
-   */
-  private static class ReaderStackElement
-    {
-      private Reader _reader;
-      private String _file;
-      private int _line;
-      private int _col;
-
-      ReaderStackElement (Reader reader, int line, int col)
-        {
-          _reader = reader;
-          _line = line;
-          _col = col;
-        }
-      
-      ReaderStackElement (Reader reader, String file, int line, int col)
-        {
-          _reader = reader;
-          _file = file;
-          _line = line;
-          _col = col;
-        }
-
-      final Reader reader ()
-        {
-          return _reader;
-        }
-
-      final String file ()
-        {
-          return _file;
-        }
-
-      final int line ()
-        {
-          return _line;
-        }
-
-      final int col ()
-        {
-          return _col;
-        }
-    }
 }
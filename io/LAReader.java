@@ -6,11 +6,37 @@ package hlt.language.io;
 
 import java.io.Reader;
 import java.io.IOException;
+import java.util.Objects;
 import hlt.language.tools.Misc;
 
 /**
  * This class provides the convenience for doing lookaheads of arbitrary
  * length on a given Reader.
+ * <p>
+ * The characters read ahead are kept in a ring buffer whose capacity is a
+ * power of 2, refilled from the underlying reader in blocks. A lookahead
+ * longer than the buffer makes it grow to the next power of 2 that
+ * accommodates it. The end of file is not stored in the buffer but kept as
+ * a marker following the buffered characters; so are the <tt>IO.SOI</tt>
+ * and <tt>IO.EOI</tt> markers of a non-seamless <tt>IncludeReader</tt>,
+ * which is read one character at a time so as to detect them. A lookahead
+ * never goes past a marker.
+ * <p>
+ * Marking is supported: the characters read since the mark are kept in the
+ * buffer, ahead of those not read yet, until more than the read-ahead limit
+ * have been read, so that <tt>reset()</tt> merely moves back the start of
+ * the buffer.
+ * <p>
+ * When the underlying reader is an <tt>IncludeReader</tt>, each block is
+ * read from a single one of its readers, whose location (file, line index,
+ * offset, and source position) after the block is recorded along with it,
+ * so that the location of each character delivered is known (see
+ * <tt>lineIndex()</tt>, <tt>position()</tt>, <tt>getFile()</tt>, and
+ * <tt>getSourcePosition()</tt>) rather than that of the last one read
+ * ahead. When an inclusion starts, the characters read ahead and not
+ * delivered yet are given back to the <tt>IncludeReader</tt>, if they all
+ * come from its current reader, so that the inclusion is read right after
+ * the characters delivered so far, as it would be without reading ahead.
  *
  * @see         LAStreamTokenizer
  * @version     Last modified on Wed Jun 20 13:57:09 2012 by hak
@@ -21,79 +47,377 @@ import hlt.language.tools.Misc;
 public class LAReader extends Reader
 {
   /**
-   * The underlying Reader.
+   * The default size of the buffer, which is also the size of the blocks
+   * read from the underlying reader.
    */
-  private Reader reader;  
+  public static final int DEFAULT_BUFFER_SIZE = 8192;
 
   /**
-   * The buffer.
+   * The value of <tt>marker</tt> when there is none.
    */
-  private int[] buffer;
+  private static final int NO_MARKER = 0;
 
   /**
-   * The buffer's size.
+   * The underlying Reader.
    */
-  private int BUFFER_SIZE = 20;
+  private Reader reader;
 
   /**
-   * The buffer's start index.
+   * The ring buffer; its length is always a power of 2.
+   */
+  private char[] buffer;
+
+  /**
+   * The index of the next character to read in the buffer.
    */
   private int start = 0;
 
   /**
-   * The buffer's end.
+   * The number of characters in the buffer.
+   */
+  private int count = 0;
+
+  /**
+   * The marker read from the underlying reader right after the buffered
+   * characters: <tt>IO.EOF</tt>, <tt>IO.SOI</tt>, <tt>IO.EOI</tt>, or
+   * <tt>NO_MARKER</tt>.
+   */
+  private int marker = NO_MARKER;
+
+  /**
+   * The read-ahead limit of the current mark, or -1 if there is no mark.
+   */
+  private int markLimit = -1;
+
+  /**
+   * The number of characters read since the mark, which are kept in the
+   * buffer right before <tt>start</tt>.
+   */
+  private int pinned = 0;
+
+  /**
+   * The underlying reader if it is an <tt>IncludeReader</tt>, or
+   * <tt>null</tt>.
+   */
+  private IncludeReader includeReader;
+
+  /**
+   * The number of characters read from the underlying reader into the
+   * buffer so far, by which they are numbered from 0: the next one to be
+   * delivered is numbered <tt>total-count</tt>.
+   */
+  private long total = 0;
+
+  /**
+   * The spans of characters read from an underlying <tt>IncludeReader</tt>
+   * still needed to locate the characters in the buffer, oldest first, in
+   * a ring whose capacity is a power of 2. Each span is read from one
+   * reader, and is recorded by the numbers of its first character and of
+   * the one past its last, along with the location of its last character,
+   * from which those of the others follow.
+   */
+  private long[] spanStarts = new long[8];
+  private long[] spanEnds = new long[8];
+  private LineIndex[] spanLines = new LineIndex[8];
+  private int[] spanOffsets = new int[8];
+  private String[] spanFiles = new String[8];
+  private long[] spanPositions = new long[8];
+  private int spanHead = 0;
+  private int spanCount = 0;
+
+  /**
+   * Whether the latest thing delivered was a marker (or characters read
+   * directly from the underlying reader), and its location then, as
+   * reported by the <tt>IncludeReader</tt>.
    */
-  private int end = 0;
+  private boolean isAtMarker = false;
+  private LineIndex markerLines;
+  private int markerOffset;
+  private String markerFile;
+  private long markerPosition;
 
   /**
-   * A flag to indicate that the end of file has been read.
+   * The metrics counting the refills of the buffer, if any (this is set by
+   * <tt>LAStreamTokenizer.setMetrics</tt>).
    */
-  private boolean eofHasBeenRead = false;
+  TokenizerMetrics metrics;
 
   /**
-   * Fills the buffer starting at position 0.
+   * Reads characters from the underlying reader until there are at least
+   * <tt>n</tt> characters in the buffer, or a marker is read. The buffer
+   * is first grown if it cannot hold <tt>n</tt> characters. Returns
+   * <tt>true</tt> iff there are at least <tt>n</tt> characters in the
+   * buffer.
    */
-  private final void fill () throws IOException
+  private final boolean fill (int n) throws IOException
     {
-      fill_from(0);
+      if (n+pinned > buffer.length)
+        grow(n+pinned);
+
+      while (count < n && marker == NO_MARKER)
+        refill();
+
+      return count >= n;
     }
 
   /**
-   * Fills the buffer starting at the specified position until it is full, or
-   * the end of file is read, or the reader becomes non ready.
+   * Reads one block of characters from the underlying reader into the
+   * free contiguous space following the buffered characters.
    */
-  private final void fill_from (int beginning) throws IOException
+  private final void refill () throws IOException
     {
-      if (eofHasBeenRead) return;
+      if (TokenizerMetrics.ENABLED && metrics != null)
+        metrics.lookaheadRefill();
 
-      end = beginning;
+      IOEvents.LookaheadRefill event = new IOEvents.LookaheadRefill();
+      event.begin();
 
-      for (int i=beginning; i<BUFFER_SIZE; i++)
+      int end = (start+count) & (buffer.length-1);
+      int len = Math.min(buffer.length-count-pinned,buffer.length-end);
+      int n;
+
+      if (mayReadMarkers())
         {
-          buffer[i] = reader.read();
-          end++;
-          if (buffer[i] == IO.EOF)
-          {
-            eofHasBeenRead = true;
-            break;
-          }
+          // up to a marker, the characters come from the reader current
+          // before the first one, each one position further:
+          LineIndex lines = includeReader.lineIndex();
+          int offset = includeReader.position();
+          String file = includeReader.getFile();
+          long position = includeReader.getSourcePosition();
+
+          for (n = 0; n < len && (n == 0 || reader.ready()); n++)
+            {
+              int c = reader.read();
+              if (c < 0)
+                {
+                  marker = c;
+                  break;
+                }
+              buffer[end+n] = (char)c;
+            }
+
+          count += n;
+          total += n;
+
+          if (n > 0)
+            addSpan(n,lines,offset+n,file,position+n);
+        }
+      else
+        {
+          n = includeReader == null ? reader.read(buffer,end,len)
+                                    : includeReader.readSpan(buffer,end,len);
+          if (n < 0)
+            {
+              marker = IO.EOF;
+              n = 0;
+            }
+
+          count += n;
+          total += n;
+
+          if (n > 0 && includeReader != null)
+            addSpan(n,includeReader.lineIndex(),includeReader.position(),
+                    includeReader.getFile(),includeReader.getSourcePosition());
         }
 
-      start = 0;
+      event.record(null,0,n);
     }
 
   /**
-   * Refills the buffer after shifting its contents down to
-   * start at 0.
+   * Records that the specified number of characters just read into the
+   * buffer come from one reader of the underlying <tt>IncludeReader</tt>,
+   * the last one being at the specified location, and drops the spans no
+   * longer needed.
    */
-  private final void refill () throws IOException
+  private final void addSpan (int n, LineIndex lines, int offset, String file, long position)
     {
-      if (eofHasBeenRead) return;
+      int mask = spanEnds.length-1;
+
+      // the oldest character that may have to be located is the one
+      // delivered last, or the one before the mark:
+      long oldest = total - count - pinned - 1;
+      while (spanCount > 0 && spanEnds[spanHead] <= oldest)
+        {
+          spanLines[spanHead] = null;
+          spanFiles[spanHead] = null;
+          spanHead = (spanHead+1) & mask;
+          spanCount--;
+        }
 
-      for (int i=0; i<end-start; i++)
-        buffer[i] = buffer[start+i];
+      if (spanCount > 0)
+        {
+          int last = (spanHead+spanCount-1) & mask;
+
+          if (spanLines[last] == lines && spanFiles[last] == file
+              && spanOffsets[last]+n == offset && spanPositions[last]+n == position)
+            {
+              spanEnds[last] = total;
+              spanOffsets[last] = offset;
+              spanPositions[last] = position;
+              return;
+            }
+        }
+
+      if (spanCount == spanEnds.length)
+        growSpans();
+
+      int span = (spanHead+spanCount++) & (spanEnds.length-1);
+      spanStarts[span] = total - n;
+      spanEnds[span] = total;
+      spanLines[span] = lines;
+      spanOffsets[span] = offset;
+      spanFiles[span] = file;
+      spanPositions[span] = position;
+    }
+
+  /**
+   * Doubles the capacity of the ring of spans, moving them to start at 0.
+   */
+  private final void growSpans ()
+    {
+      int capacity = 2*spanEnds.length;
+      int mask = spanEnds.length-1;
+
+      long[] starts = new long[capacity];
+      long[] ends = new long[capacity];
+      LineIndex[] lines = new LineIndex[capacity];
+      int[] offsets = new int[capacity];
+      String[] files = new String[capacity];
+      long[] positions = new long[capacity];
+
+      for (int i = 0; i < spanCount; i++)
+        {
+          int span = (spanHead+i) & mask;
+          starts[i] = spanStarts[span];
+          ends[i] = spanEnds[span];
+          lines[i] = spanLines[span];
+          offsets[i] = spanOffsets[span];
+          files[i] = spanFiles[span];
+          positions[i] = spanPositions[span];
+        }
+
+      spanStarts = starts;
+      spanEnds = ends;
+      spanLines = lines;
+      spanOffsets = offsets;
+      spanFiles = files;
+      spanPositions = positions;
+      spanHead = 0;
+    }
+
+  /**
+   * Returns the span of the character delivered last, or -1 if it is not
+   * in any (because nothing was delivered yet).
+   */
+  private final int latestSpan ()
+    {
+      long latest = total - count - 1;
+      int mask = spanEnds.length-1;
+
+      for (int i = 0; i < spanCount; i++)
+        {
+          int span = (spanHead+i) & mask;
+          if (latest < spanEnds[span])
+            return latest >= spanStarts[span] ? span : -1;
+        }
+
+      return -1;
+    }
+
+  /**
+   * Returns the number of positions by which the character delivered last
+   * precedes the last one of the specified span.
+   */
+  private final int distance (int span)
+    {
+      return (int)(spanEnds[span] - (total - count));
+    }
+
+  /**
+   * Records the location of the underlying <tt>IncludeReader</tt> as that of
+   * what is delivered now, which is not in the buffer.
+   */
+  private final void locateHere ()
+    {
+      if (includeReader == null)
+        return;
+
+      isAtMarker = true;
+      markerLines = includeReader.lineIndex();
+      markerOffset = includeReader.position();
+      markerFile = includeReader.getFile();
+      markerPosition = includeReader.getSourcePosition();
+    }
+
+  /**
+   * Returns <tt>true</tt> iff the underlying reader may return markers
+   * other than <tt>IO.EOF</tt>.
+   */
+  private final boolean mayReadMarkers ()
+    {
+      return includeReader != null && !includeReader.isSeamless();
+    }
+
+  /**
+   * Returns the current marker, which is consumed unless it is
+   * <tt>IO.EOF</tt>.
+   */
+  private final int takeMarker ()
+    {
+      locateHere();
+
+      int c = marker;
+      if (c != IO.EOF)
+        {
+          marker = NO_MARKER;
+          unmark();
+        }
+      return c;
+    }
+
+  /**
+   * Drops the current mark, if any, releasing the characters it pinned.
+   */
+  private final void unmark ()
+    {
+      markLimit = -1;
+      pinned = 0;
+    }
+
+  /**
+   * Grows the buffer to the smallest power of 2 no less than <tt>n</tt>,
+   * moving its contents, including the pinned characters, to start at 0.
+   */
+  private final void grow (int n)
+    {
+      int capacity = buffer.length;
+      while (capacity < n)
+        {
+          if (capacity >= 1<<30)
+            throw new OutOfMemoryError("Lookahead too long: "+n);
+          capacity <<= 1;
+        }
+
+      char[] newBuffer = new char[capacity];
+      int from = (start-pinned) & (buffer.length-1);
+      int size = pinned+count;
+      int first = Math.min(size,buffer.length-from);
+
+      System.arraycopy(buffer,from,newBuffer,0,first);
+      System.arraycopy(buffer,0,newBuffer,first,size-first);
+
+      buffer = newBuffer;
+      start = pinned;
+    }
 
-      fill_from(end-start);
+  /**
+   * Returns the smallest power of 2 no less than the specified size.
+   */
+  private static final int capacity (int size)
+    {
+      if (size <= 1) return 1;
+      if (size > 1<<30) throw new IllegalArgumentException("Buffer too large: "+size);
+      return Integer.highestOneBit(size-1) << 1;
     }
 
   /*************************************************************************/
@@ -107,18 +431,117 @@ public class LAReader extends Reader
    */
   public LAReader (Reader reader)
     {
-      this.reader = reader;
-      buffer = new int[BUFFER_SIZE];
+      this(reader,DEFAULT_BUFFER_SIZE);
     }
 
   /**
    * Constructs a LAReader with the specified Reader
-   * and buffer size.
+   * and buffer size (rounded up to a power of 2).
    */
   public LAReader (Reader reader, int size)
     {
       this.reader = reader;
-      buffer = new int[BUFFER_SIZE=size];
+      buffer = new char[capacity(size)];
+
+      if (reader instanceof IncludeReader)
+        {
+          includeReader = (IncludeReader)reader;
+          includeReader.setLookahead(this);
+        }
+    }
+
+  /**
+   * Returns the line index of the reader of the underlying
+   * <tt>IncludeReader</tt> the character delivered last was read from.
+   */
+  final LineIndex lineIndex ()
+    {
+      if (isAtMarker)
+        return markerLines;
+
+      int span = latestSpan();
+      return span < 0 ? includeReader.lineIndex() : spanLines[span];
+    }
+
+  /**
+   * Returns the position of the character delivered last in the reader of
+   * the underlying <tt>IncludeReader</tt> it was read from, as the latter
+   * would report it right after reading it (see
+   * <tt>IncludeReader.position()</tt>).
+   */
+  final int position ()
+    {
+      if (isAtMarker)
+        return markerOffset;
+
+      int span = latestSpan();
+      return span < 0 ? includeReader.position() : spanOffsets[span] - distance(span);
+    }
+
+  /**
+   * Returns the name of the file the character delivered last was read
+   * from by the underlying <tt>IncludeReader</tt>.
+   */
+  final String getFile ()
+    {
+      if (isAtMarker)
+        return markerFile;
+
+      int span = latestSpan();
+      return span < 0 ? includeReader.getFile() : spanFiles[span];
+    }
+
+  /**
+   * Returns the source position of the character delivered last, as the
+   * underlying <tt>IncludeReader</tt> would report it right after reading
+   * it (see <tt>IncludeReader.getSourcePosition()</tt>).
+   */
+  final long getSourcePosition ()
+    {
+      if (isAtMarker)
+        return markerPosition;
+
+      int span = latestSpan();
+      return span < 0 ? includeReader.getSourcePosition() : spanPositions[span] - distance(span);
+    }
+
+  /**
+   * Gives back the characters read ahead and not delivered yet to the
+   * underlying <tt>IncludeReader</tt>, which is about to start an
+   * inclusion, provided they are the latest ones read from its current
+   * reader (see <tt>IncludeReader.unread</tt>). Otherwise, they are kept,
+   * and will be delivered before the inclusion.
+   */
+  final void giveBack ()
+    {
+      if (count == 0 || spanCount == 0 || marker != NO_MARKER && marker != IO.EOF)
+        return;
+
+      int last = (spanHead+spanCount-1) & (spanEnds.length-1);
+
+      if (spanStarts[last] > total - count
+          || spanLines[last] != includeReader.lineIndex()
+          || spanOffsets[last] != includeReader.position()
+          || spanPositions[last] != includeReader.getSourcePosition())
+        return;
+
+      char[] chars = new char[count];
+      int first = Math.min(count,buffer.length-start);
+
+      System.arraycopy(buffer,start,chars,0,first);
+      System.arraycopy(buffer,0,chars,first,count-first);
+
+      includeReader.unread(chars);
+
+      spanEnds[last] -= count;
+      spanOffsets[last] -= count;
+      spanPositions[last] -= count;
+      if (spanEnds[last] == spanStarts[last])
+        spanCount--;
+
+      total -= count;
+      count = 0;
+      marker = NO_MARKER;
     }
 
   /**
@@ -126,40 +549,109 @@ public class LAReader extends Reader
    */
   public final int read () throws IOException
     {
-      if (start == end) fill();
-      if (buffer[start] != IO.EOF) return buffer[start++];
-      return IO.EOF;    // end of file
+      if (count == 0 && !fill(1))
+        return takeMarker();
+
+      char c = buffer[start];
+      consume(1);
+      return c;
     }
 
   /**
    * Returns the string of the <tt>n</tt> characters to be read next. If less
-   * than <tt>n</tt> characters are available in the currentl buffer, it is
-   * first refilled. If <tt>n</tt> is greater than <tt>BUFFER_SIZE</tt>, the
-   * buffer is first resized to <tt>n</tt> and refilled. If the end of file is
-   * read, or the reader becomes non ready before <tt>n</tt> characters are
-   * consumed, only those characters that have been already read are used (and
-   * the lookahead is then shorter than <tt>n</tt>). If the reader is not
-   * ready or only the end of file remains, the empty string is returned.
+   * than <tt>n</tt> characters are available in the current buffer, more are
+   * first read. If <tt>n</tt> is greater than the buffer's size, the buffer is
+   * first grown to accommodate them. If the end of file (or, more generally, a
+   * marker) is read before <tt>n</tt> characters are, only those characters
+   * that precede it are used (and the lookahead is then shorter than
+   * <tt>n</tt>). If only the end of file remains, the empty string is
+   * returned.
    */
   public final String lookahead (int n) throws IOException
     {
       if (n <= 0) return "";
 
-      if (n > BUFFER_SIZE)
-        resizeBuffer(n);
-      else
-        if (n > end-start)
-          refill();
+      fill(n);
+
+      int length = Math.min(n,count);
+      int first = Math.min(length,buffer.length-start);
 
-      StringBuilder string = new StringBuilder(n);
+      if (first == length)
+        return new String(buffer,start,length);
 
-      for (int i=start; i<start+n; i++)
+      return new StringBuilder(length)
+        .append(buffer,start,first)
+        .append(buffer,0,length-first)
+        .toString();
+    }
+
+  /**
+   * Returns the <tt>k</tt>-th character to be read next, the next one being
+   * the 0-th. If the input ends before it, the marker ending it is returned
+   * instead (<i>i.e.</i>, <tt>IO.EOF</tt>, or <tt>IO.SOI</tt> or
+   * <tt>IO.EOI</tt> for a non-seamless <tt>IncludeReader</tt>). Nothing is
+   * consumed.
+   */
+  public final int charAt (int k) throws IOException
+    {
+      if (k < 0)
+        throw new IndexOutOfBoundsException("Negative lookahead: "+k);
+
+      if (k >= count && !fill(k+1))
+        return marker;
+
+      return buffer[(start+k) & (buffer.length-1)];
+    }
+
+  /**
+   * Returns <tt>true</tt> iff the characters to be read next are those of
+   * the specified sequence. This is the same as, but cheaper than,
+   * <tt>lookahead(s.length()).contentEquals(s)</tt>.
+   */
+  public final boolean lookaheadMatches (CharSequence s) throws IOException
+    {
+      return matches(s,0);
+    }
+
+  /**
+   * Returns <tt>true</tt> iff the characters to be read next are those of
+   * the specified sequence from index <tt>from</tt> on.
+   */
+  final boolean matches (CharSequence s, int from) throws IOException
+    {
+      int n = s.length() - from;
+
+      if (n > count && !fill(n))
+        return false;
+
+      for (int i = 0; i < n; i++)
+        if (buffer[(start+i) & (buffer.length-1)] != s.charAt(from+i))
+          return false;
+
+      return true;
+    }
+
+  /**
+   * Returns the index of the first occurrence of the specified character
+   * among the next <tt>limit</tt> characters to be read, the next one being
+   * at index 0, or -1 if there is none. No more characters than needed are
+   * read ahead, and nothing is consumed.
+   */
+  public final int indexOf (char c, int limit) throws IOException
+    {
+      int i = 0;
+
+      for (;;)
         {
-          if (i == end || buffer[i] == IO.EOF) break;
-          string.append((char)buffer[i]);
-        }
+          int n = Math.min(limit,count);
+
+          for (; i < n; i++)
+            if (buffer[(start+i) & (buffer.length-1)] == c)
+              return i;
 
-      return string.toString();
+          if (n >= limit || !fill(n+1))
+            return -1;
+        }
     }
 
   /**
@@ -167,24 +659,17 @@ public class LAReader extends Reader
    */
   public final String lookahead () throws IOException
     {
-      return lookahead(BUFFER_SIZE);
-    }    
+      return lookahead(buffer.length);
+    }
 
   /**
-   * Resizes the lookahead buffer to the specified size.
+   * Grows the lookahead buffer to at least the specified size (rounded up
+   * to a power of 2). The buffer never shrinks.
    */
   public void resizeBuffer (int size) throws IOException
     {
-      if (size < end-start || eofHasBeenRead) return;
-
-      int[] newBuffer = new int[size];
-
-      for (int i=0; i<end-start; i++)
-        newBuffer[i] = buffer[start+i];
-
-      buffer = newBuffer;
-      BUFFER_SIZE = size;
-      fill_from(end-start-1);
+      if (size > buffer.length)
+        grow(capacity(size));
     }
 
   /**
@@ -202,15 +687,17 @@ public class LAReader extends Reader
     {
       StringBuilder s = new StringBuilder();
 
-      s.append("BUFFER_SIZE = ").append(BUFFER_SIZE);
-      s.append("\nEOF read? = ").append(eofHasBeenRead);
+      s.append("BUFFER_SIZE = ").append(buffer.length);
+      s.append("\nmarker = ").append(marker == NO_MARKER ? "none" : Misc.pform(marker));
       s.append("\nstart = ").append(start);
-      s.append("\nend = ").append(end);
-      for (int i=start; i<end; i++)
+      s.append("\ncount = ").append(count);
+      if (markLimit >= 0)
+        s.append("\nmarked = ").append(pinned).append(" (limit ").append(markLimit).append(")");
+      for (int i=0; i<count; i++)
         {
-          s.append("\nbuffer[").append(i).append("] = ");
-          s.append("'").append(Misc.pform(buffer[i])).append("'");
-          if (buffer[i] == IO.EOF) break;
+          int index = (start+i) & (buffer.length-1);
+          s.append("\nbuffer[").append(index).append("] = ");
+          s.append("'").append(Misc.pform(buffer[index])).append("'");
         }
       return s.toString();
     }
@@ -220,7 +707,13 @@ public class LAReader extends Reader
   // <tt>LAReader</tt>.
 
   /**
-   * Read characters into a portion of an array.
+   * Read characters into a portion of an array. The characters already in
+   * the buffer are copied at once; if there are none, the buffer is first
+   * refilled, unless the request is at least as large as the buffer, in
+   * which case the characters are read directly into the array. Like
+   * <tt>IncludeReader.read(char[],int,int)</tt>, this reads an
+   * <tt>IO.SOI</tt> or <tt>IO.EOI</tt> marker into the array like any other
+   * character.
    * @param     cbuf    Destination buffer
    * @param     off     Offset at which to start storing characters
    * @param     len     Maximum number of characters to read
@@ -229,21 +722,50 @@ public class LAReader extends Reader
    */
   public int read (char[] cbuf, int off, int len) throws IOException
     {
-      int c;
-      int count = 0;
+      Objects.checkFromIndexSize(off,len,cbuf.length);
+
+      if (len == 0) return 0;
+
+      if (count == 0)
+        {
+          if (len >= buffer.length && marker == NO_MARKER && markLimit < 0 && !mayReadMarkers())
+            {
+              int n = reader.read(cbuf,off,len);
+              if (n < 0) marker = IO.EOF;
+              locateHere();
+              return n;
+            }
+
+          if (!fill(1))
+            {
+              int c = takeMarker();
+              if (c == IO.EOF) return IO.EOF;
+              cbuf[off] = (char)c;
+              return 1;
+            }
+        }
+
+      int n = Math.min(len,count);
+      int first = Math.min(n,buffer.length-start);
+
+      System.arraycopy(buffer,start,cbuf,off,first);
+      System.arraycopy(buffer,0,cbuf,off+first,n-first);
 
-      while (off < cbuf.length && count < len)
-        switch (c = read())
-          {
-          case IO.EOF:
-            return c;
-          default:
-            cbuf[off] = (char)c;
-            off++;
-            count++;
-          }
+      consume(n);
+      return n;
+    }
+
+  /**
+   * Consumes the first <tt>n</tt> characters in the buffer.
+   */
+  private final void consume (int n)
+    {
+      start = (start+n) & (buffer.length-1);
+      count -= n;
+      isAtMarker = false;
 
-      return count;
+      if (markLimit >= 0 && (pinned += n) > markLimit)
+        unmark();
     }
 
   /**
@@ -271,15 +793,22 @@ public class LAReader extends Reader
         throw new IllegalArgumentException
           ("Cannot skip negative number of chars: "+n);
 
-      int count = 0;
+      long total = 0;
 
-      while (count < n)
-        if (read() < 0)
-          return count;
-        else
-          count++;
+      while (total < n)
+        {
+          if (count == 0 && !fill(1))
+            {
+              takeMarker();
+              return total;
+            }
+
+          int k = (int)Math.min(n-total,count);
+          consume(k);
+          total += k;
+        }
 
-      return count;
+      return total;
     }
 
   /**
@@ -288,32 +817,46 @@ public class LAReader extends Reader
    */
    public boolean ready () throws IOException
     {
-      return start < end || reader.ready();
+      return count > 0 || marker != NO_MARKER || reader.ready();
     }
 
   /**
-   * Returns <tt>false</tt> because it there is no simple way to
-   * accommodate marking with the lookahead buffer.
+   * Returns <tt>true</tt> since marking is supported.
    */
   public boolean markSupported ()
     {
-      return false;
+      return true;
     }
 
   /**
-   * This method does nothing because marking is not supported.
+   * Marks the present position, to which <tt>reset()</tt> will come back as
+   * long as no more than <tt>readAheadLimit</tt> characters have been read
+   * since. Reading an <tt>IO.SOI</tt> or <tt>IO.EOI</tt> marker also drops
+   * the mark, since markers are not kept in the buffer.
+   *
+   * @throws    IllegalArgumentException (if <tt>readAheadLimit</tt> is negative)
    */
   public void mark (int readAheadLimit) throws IOException
     {
+      if (readAheadLimit < 0)
+        throw new IllegalArgumentException("Read-ahead limit < 0");
+
+      markLimit = readAheadLimit;
+      pinned = 0;
     }
 
   /**
-   * This method does nothing because marking is not supported.
+   * Moves back to the latest mark, which stays in place.
+   *
+   * @throws    IOException (if there is no mark or it has been dropped)
    */
   public void reset () throws IOException
     {
+      if (markLimit < 0)
+        throw new IOException("Stream not marked, or mark invalidated");
+
+      start = (start-pinned) & (buffer.length-1);
+      count += pinned;
+      pinned = 0;
     }
 }
-
-
-
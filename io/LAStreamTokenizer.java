@@ -19,7 +19,10 @@ import java.io.EOFException;
  * public final String lookahead (int n) throws IOException
  * </pre>
  * which returns the string of <tt>n</tt> characters in the input stream
- * including and starting with the current character.
+ * including and starting with the current character, along with
+ * <tt>charAt(int)</tt>, <tt>lookaheadMatches(CharSequence)</tt>, and
+ * <tt>indexOf(char,int)</tt>, which inspect the same characters without
+ * building a string.
  *
  * @see         AbstractStreamTokenizer
  * @see         StreamTokenizer
@@ -85,6 +88,16 @@ public class LAStreamTokenizer extends AbstractStreamTokenizer
       skipBracketComments = flag;
     }
 
+  /**
+   * Sets the metrics recording what this tokenizer does, including the
+   * refills of its lookahead buffer.
+   */
+  public final void setMetrics (TokenizerMetrics metrics)
+    {
+      super.setMetrics(metrics);
+      input.metrics = metrics;
+    }
+
   /**
    * Reads a token and returns its type, which is also the value of <tt>ttype</tt>.
    * The possible token types are:
@@ -121,6 +134,18 @@ public class LAStreamTokenizer extends AbstractStreamTokenizer
             return ttype;
         }
 
+      if (hasQueuedTokens())
+        return dequeueToken();
+
+      return scanNextToken();
+    }
+
+  /**
+   * Scans the next token from the input and returns its type. This does
+   * not take pushed back or queued tokens into account.
+   */
+  final int scanToken () throws IOException
+    {
       sval = null;
       nval = Double.NaN;
       isInteger = false;
@@ -135,19 +160,17 @@ public class LAStreamTokenizer extends AbstractStreamTokenizer
 	  setEndLocation();
           return (ttype = TT_EOF);
         case TT_NOTHING:
-          return nextToken();
+          return scanToken();
         default:
-          if (skipLineComments &&
-              lookahead(COMMENT_LINE.length()).equals(COMMENT_LINE))
+          if (skipLineComments && lookaheadMatches(COMMENT_LINE))
             {
               skipLine();
-              return nextToken();
+              return scanToken();
             }
-          if (skipBracketComments &&
-              lookahead(COMMENT_START.length()).equals(COMMENT_START))
+          if (skipBracketComments && lookaheadMatches(COMMENT_START))
             {
               skipComment();
-              return nextToken();
+              return scanToken();
             }
         }
       
@@ -167,7 +190,7 @@ public class LAStreamTokenizer extends AbstractStreamTokenizer
 	      setEndLocation();
 	      return (ttype = currentChar);
 	    }
-          return nextToken();
+          return scanToken();
         case ORDINARY:
 	  setEndLocation();
           return (ttype = currentChar);
@@ -258,6 +281,67 @@ public class LAStreamTokenizer extends AbstractStreamTokenizer
              input.lookahead(n-2);
     }
 
+  /**
+   * Returns the <tt>k</tt>-th character to be processed next, the current
+   * character being the 0-th. If the input ends before it, <tt>TT_EOF</tt>
+   * is returned.
+   */
+  public final int charAt (int k) throws IOException
+    {
+      switch (k)
+        {
+        case 0:
+          return currentChar;
+        case 1:
+          return followingChar;
+        }
+
+      return input.charAt(k-2);
+    }
+
+  /**
+   * Returns <tt>true</tt> iff the characters to be processed next, including
+   * and starting with the current character, are those of the specified
+   * sequence. This is the same as, but cheaper than,
+   * <tt>lookahead(s.length()).contentEquals(s)</tt>.
+   */
+  public final boolean lookaheadMatches (CharSequence s) throws IOException
+    {
+      switch (s.length())
+        {
+        case 0:
+          return true;
+        case 1:
+          return currentChar == s.charAt(0);
+        }
+
+      return currentChar == s.charAt(0)
+          && followingChar == s.charAt(1)
+          && input.matches(s,2);
+    }
+
+  /**
+   * Returns the index of the first occurrence of the specified character
+   * among the next <tt>limit</tt> characters to be processed, the current
+   * character being at index 0, or -1 if there is none.
+   */
+  public final int indexOf (char c, int limit) throws IOException
+    {
+      if (limit <= 0) return -1;
+      if (currentChar == c) return 0;
+      if (limit == 1) return -1;
+      if (followingChar == c) return 1;
+
+      int index = input.indexOf(c,limit-2);
+      return index < 0 ? -1 : index+2;
+    }
+
+  final String commentSyntax ()
+    {
+      return (skipLineComments ? COMMENT_LINE : "") + "\n" +
+             (skipBracketComments ? COMMENT_START + "\n" + COMMENT_END : "");
+    }
+
   //\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
   // The following are private facilities...
   //\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
@@ -284,15 +368,44 @@ public class LAStreamTokenizer extends AbstractStreamTokenizer
 
   private final void skipComment () throws IOException
     {
+      long start = charCount;
+      // the line is only computed if the event is recorded:
+      LineIndex lines = currentCharLines;
+      int offset = currentCharOffset;
+      int line = currentCharLine;
+      int length = 1;
+
+      IOEvents.CommentSkip event = new IOEvents.CommentSkip();
+      event.begin();
+
       do
         {
           nextChar();
+          length++;
           if (currentChar == TT_EOF)
             throw new EOFException("Missing end of comment ("+COMMENT_END+"): "+
                                    location());
         }
-      while (!lookahead(COMMENT_END.length()).equals(COMMENT_END));
+      while (!lookaheadMatches(COMMENT_END));
       for (int i=1; i<COMMENT_END.length(); i++) nextChar();
+
+      event.record(currentCharFile,lines,offset,line,length+COMMENT_END.length()-1);
+
+      if (TokenizerMetrics.ENABLED)
+        commentCharCount += charCount - start;
+    }
+
+  /**
+   * Records the location of the following character as that of the last
+   * one delivered by the lookahead reader, which reads ahead of the
+   * <tt>IncludeReader</tt>.
+   */
+  final void locateFollowingChar (IncludeReader includeReader)
+    {
+      followingCharLines  = input.lineIndex();
+      followingCharOffset = input.position();
+      followingCharFile   = input.getFile();
+      followingCharPosition = input.getSourcePosition();
     }
 
   final void readFollowingChar () throws IOException
@@ -301,6 +414,7 @@ public class LAStreamTokenizer extends AbstractStreamTokenizer
         {
           followingChar = input.read();
           followingCharCol++;
+          if (TokenizerMetrics.ENABLED && followingChar != TT_EOF) charCount++;
         }
       // throw away possible ^M garbage inherited from MacroHard:
       if (followingChar == IO.CRT) readFollowingChar();
@@ -327,7 +441,7 @@ public class LAStreamTokenizer extends AbstractStreamTokenizer
       // we proceed with caution, reading a further character only if
       // the character to be read next is not a dot.
 
-      if (followingChar == '.' && input.lookahead(1).charAt(0) != '.')
+      if (followingChar == '.' && input.charAt(0) != '.')
         nextChar();
 
       if (currentChar == '.')
@@ -0,0 +1,171 @@
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+// PLEASE DO NOT EDIT WITHOUT THE EXPLICIT CONSENT OF THE AUTHOR! \\
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+
+package hlt.language.io;
+
+import java.util.Arrays;
+
+/**
+ * This is the index of the line breaks of a source read by an
+ * <tt>IncludeReader</tt>, from which the line and column numbers of any
+ * position in the source are computed when needed, so that reading a
+ * character need only count it. A position is the number of characters read
+ * from the source so far; the line and column numbers of a position are
+ * those an <tt>IncludeReader</tt> reports after reading that many
+ * characters: the line number counts the end of line characters read, from
+ * 1, and the column number counts the characters read since the last one,
+ * a backspace taking back the previous one.
+ * <p>
+ * The offsets of the end of line and backspace characters are recorded in
+ * increasing order as they are read. Looking a position up is a binary
+ * search, save for positions on the same line as the previous lookup, which
+ * are found at once.
+ *
+ * @see         IncludeReader
+ */
+
+final class LineIndex
+{
+  /**
+   * The offsets of the end of line characters read so far.
+   */
+  private int[] _breaks = new int[16];
+  private int _breakCount = 0;
+
+  /**
+   * The offsets of the backspace characters read so far, or <tt>null</tt>
+   * if there is none.
+   */
+  private int[] _backspaces;
+  private int _backspaceCount = 0;
+
+  /**
+   * The index of the line found by the latest lookup (0 for line 1).
+   */
+  private int _latest = 0;
+
+  /**
+   * Records an end of line character at the specified offset.
+   */
+  final void lineBreak (int offset)
+    {
+      if (_breakCount == _breaks.length)
+        _breaks = Arrays.copyOf(_breaks,Math.max(16,2*_breakCount));
+
+      _breaks[_breakCount++] = offset;
+    }
+
+  /**
+   * Records a backspace character at the specified offset.
+   */
+  final void backspace (int offset)
+    {
+      if (_backspaces == null)
+        _backspaces = new int[4];
+      else
+        if (_backspaceCount == _backspaces.length)
+          _backspaces = Arrays.copyOf(_backspaces,Math.max(4,2*_backspaceCount));
+
+      _backspaces[_backspaceCount++] = offset;
+    }
+
+  /**
+   * Records the end of line and backspace characters among the specified
+   * characters, the first of which is at the specified offset.
+   */
+  final void scan (char[] chars, int off, int len, int offset)
+    {
+      for (int i = 0; i < len; i++)
+        {
+          char c = chars[off+i];
+
+          if (c <= IO.EOL)
+            if (c == IO.EOL)
+              lineBreak(offset+i);
+            else
+              if (c == IO.BSP)
+                backspace(offset+i);
+        }
+    }
+
+  /**
+   * Forgets the end of line and backspace characters at or after the
+   * specified offset, which are to be read again.
+   */
+  final void truncate (int offset)
+    {
+      while (_breakCount > 0 && _breaks[_breakCount-1] >= offset)
+        _breakCount--;
+
+      while (_backspaceCount > 0 && _backspaces[_backspaceCount-1] >= offset)
+        _backspaceCount--;
+
+      _latest = 0;
+    }
+
+  /**
+   * Lets go of the room reserved for more offsets, once the source has been
+   * read to the end but its index is kept (see <tt>SourceMap</tt>). More
+   * offsets may still be recorded afterwards.
+   */
+  final void trim ()
+    {
+      if (_breaks.length > _breakCount)
+        _breaks = Arrays.copyOf(_breaks,_breakCount);
+
+      if (_backspaces != null && _backspaces.length > _backspaceCount)
+        _backspaces = Arrays.copyOf(_backspaces,_backspaceCount);
+    }
+
+  /**
+   * Returns the line number of the specified position.
+   */
+  final int line (int position)
+    {
+      return lineIndex(position) + 1;
+    }
+
+  /**
+   * Returns the column number of the specified position.
+   */
+  final int column (int position)
+    {
+      int line = lineIndex(position);
+      int start = line == 0 ? 0 : _breaks[line-1] + 1;
+
+      if (_backspaceCount == 0 || _backspaces[_backspaceCount-1] < start)
+        return position - start;
+
+      int col = 0;
+      int i = Arrays.binarySearch(_backspaces,0,_backspaceCount,start);
+      if (i < 0) i = -i-1;
+
+      for (; i < _backspaceCount && _backspaces[i] < position; i++)
+        {
+          col += _backspaces[i] - start;
+          if (col > 0) col--;
+          start = _backspaces[i] + 1;
+        }
+
+      return col + position - start;
+    }
+
+  /**
+   * Returns the index of the line of the specified position: the number
+   * of end of line characters among the first <tt>position</tt> ones.
+   */
+  private final int lineIndex (int position)
+    {
+      int line = _latest;
+
+      if ((line == 0 || _breaks[line-1] < position)
+          && (line == _breakCount || _breaks[line] >= position))
+        return line;
+
+      int i = Arrays.binarySearch(_breaks,0,_breakCount,position);
+      line = i < 0 ? -i-1 : i;
+
+      return _latest = line;
+    }
+}
@@ -0,0 +1,345 @@
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+// PLEASE DO NOT EDIT WITHOUT THE EXPLICIT CONSENT OF THE AUTHOR! \\
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+
+package hlt.language.io;
+
+import java.io.Reader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.FileNotFoundException;
+
+import java.util.Objects;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CancellationException;
+
+/**
+ * This is a reader of a file opened, and the first characters of which are
+ * read and decoded, in the background, so that the file is ready to be read
+ * when it is actually included (see <tt>IncludeReader.prefetch</tt>). At
+ * most a given number of characters are read ahead; the rest of the file is
+ * read as needed from the reader left by the background task, which does
+ * not keep a file open while waiting to be read if it can reopen it where
+ * it was left (see <tt>FileChannelReader.suspend</tt>).
+ * <p>
+ * The background tasks run on virtual threads where the platform provides
+ * them, and on a pool of daemon threads otherwise. A prefetch that is not
+ * going to be used should be cancelled, which releases its buffer and file.
+ *
+ * @see         IncludeReader
+ */
+
+final class Prefetch extends Reader
+{
+  /**
+   * The default maximum number of characters read ahead per file.
+   */
+  static final int DEFAULT_LIMIT = 64*1024;
+
+  /**
+   * How a file is opened.
+   */
+  interface Source
+    {
+      Reader open (String file) throws IOException;
+    }
+
+  /**
+   * The executor running the background tasks.
+   */
+  private static final ExecutorService EXECUTOR = newExecutor();
+
+  /**
+   * Returns the executor running the background tasks, which other I/O
+   * bound tasks may share (see <tt>IncludeGraphTokenizer</tt>).
+   */
+  static ExecutorService executor ()
+    {
+      return EXECUTOR;
+    }
+
+  /**
+   * Returns an executor running each task on a virtual thread if the
+   * platform supports them, or else a pool of daemon threads that die when
+   * idle.
+   */
+  private static ExecutorService newExecutor ()
+    {
+      try
+        {
+          return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+      catch (ReflectiveOperationException | RuntimeException e)
+        {
+          int size = Math.max(4,2*Runtime.getRuntime().availableProcessors());
+          ThreadPoolExecutor pool = new ThreadPoolExecutor(size,size,10,TimeUnit.SECONDS,
+                                                           new LinkedBlockingQueue<Runnable>(),
+                                                           new ThreadFactory()
+            {
+              public Thread newThread (Runnable task)
+                {
+                  Thread thread = new Thread(task,"hlt.language.io.Prefetch");
+                  thread.setDaemon(true);
+                  return thread;
+                }
+            });
+          pool.allowCoreThreadTimeOut(true);
+          return pool;
+        }
+    }
+
+  private final String _file;
+  private final Future<?> _task;
+
+  /**
+   * The reader left open by the background task (guarded by <tt>this</tt>
+   * until the task is done).
+   */
+  private Reader _reader;
+
+  /**
+   * The characters read ahead, and the range of those not yet read.
+   */
+  private char[] _buffer;
+  private int _next = 0;
+  private int _count = 0;
+
+  private volatile boolean _isCancelled = false;
+
+  /**
+   * Starts prefetching the specified file, opened with the specified
+   * source, reading at most the specified number of characters ahead.
+   */
+  Prefetch (String file, Source source, int limit)
+    {
+      _file = file;
+      _task = EXECUTOR.submit(() -> { fetch(source,limit); return null; });
+    }
+
+  /**
+   * The background task: opens the file and fills the buffer. The buffers
+   * of a <tt>FileChannelReader</tt> suspended or closed here are not kept
+   * in this pooled thread, which would hold them while idle.
+   */
+  private final void fetch (Source source, int limit) throws IOException
+    {
+      FileChannelReader.keepSpares(false);
+
+      try
+        {
+          fill(source,limit);
+        }
+      finally
+        {
+          FileChannelReader.keepSpares(true);
+        }
+    }
+
+  /**
+   * Opens the file and fills the buffer.
+   */
+  private final void fill (Source source, int limit) throws IOException
+    {
+      if (_isCancelled)
+        return;
+
+      Reader reader = source.open(_file);
+      char[] buffer = new char[limit];
+      int count = 0;
+
+      try
+        {
+          for (int n = 0; count < limit && !_isCancelled; count += n)
+            if ((n = reader.read(buffer,count,limit-count)) == IO.EOF)
+              break;
+        }
+      catch (IOException e)
+        {
+          reader.close();
+          throw e;
+        }
+
+      suspend(reader);
+
+      synchronized (this)
+        {
+          if (_isCancelled)
+            {
+              reader.close();
+              return;
+            }
+
+          _reader = reader;
+          _buffer = buffer;
+          _count = count;
+        }
+    }
+
+  /**
+   * Returns the reader left by the background task, or <tt>null</tt> if it
+   * is not done.
+   */
+  final synchronized Reader reader ()
+    {
+      return _reader;
+    }
+
+  /**
+   * Returns the name of the prefetched file.
+   */
+  final String file ()
+    {
+      return _file;
+    }
+
+  /**
+   * Waits for the background task to complete, and returns this reader.
+   *
+   * @throws    FileNotFoundException (if the file cannot be opened or read)
+   */
+  final Reader await () throws FileNotFoundException
+    {
+      try
+        {
+          _task.get();
+          return this;
+        }
+      catch (InterruptedException e)
+        {
+          cancel();
+          Thread.currentThread().interrupt();
+          FileNotFoundException exception = new FileNotFoundException(_file+" (interrupted)");
+          exception.initCause(new InterruptedIOException());
+          throw exception;
+        }
+      catch (CancellationException e)
+        {
+          throw new FileNotFoundException(_file+" (prefetch cancelled)");
+        }
+      catch (ExecutionException e)
+        {
+          if (e.getCause() instanceof FileNotFoundException)
+            throw (FileNotFoundException)e.getCause();
+
+          FileNotFoundException exception = new FileNotFoundException(_file+" ("+e.getCause().getMessage()+")");
+          exception.initCause(e.getCause());
+          throw exception;
+        }
+    }
+
+  /**
+   * Cancels this prefetch, closing the file if it was opened.
+   */
+  final void cancel ()
+    {
+      _isCancelled = true;
+      _task.cancel(false);
+
+      synchronized (this)
+        {
+          if (_reader != null)
+            try
+              {
+                _reader.close();
+              }
+            catch (IOException e)
+              {
+              }
+
+          _reader = null;
+          _buffer = null;
+        }
+    }
+
+  /**
+   * Closes the file read by this prefetch for now, if it can be reopened
+   * where it was left when read again.
+   */
+  final void suspend ()
+    {
+      suspend(_reader);
+    }
+
+  /**
+   * Closes the file read by the specified reader for now, if it can be
+   * reopened where it was left when read again.
+   */
+  static final void suspend (Reader reader)
+    {
+      if (reader instanceof FileChannelReader)
+        ((FileChannelReader)reader).suspend();
+      else
+        if (reader instanceof Prefetch)
+          ((Prefetch)reader).suspend();
+    }
+
+  private final void ensureOpen () throws IOException
+    {
+      if (_reader == null)
+        throw new IOException("Reader closed");
+    }
+
+  public int read () throws IOException
+    {
+      ensureOpen();
+
+      if (_next < _count)
+        return _buffer[_next++];
+
+      release();
+      return _reader.read();
+    }
+
+  public int read (char[] cbuf, int off, int len) throws IOException
+    {
+      ensureOpen();
+      Objects.checkFromIndexSize(off,len,cbuf.length);
+
+      if (len == 0)
+        return 0;
+
+      if (_next < _count)
+        {
+          int n = Math.min(len,_count-_next);
+          System.arraycopy(_buffer,_next,cbuf,off,n);
+          _next += n;
+          return n;
+        }
+
+      release();
+      return _reader.read(cbuf,off,len);
+    }
+
+  public boolean ready () throws IOException
+    {
+      ensureOpen();
+      return _next < _count || _reader.ready();
+    }
+
+  /**
+   * Lets go of the buffer once all its characters have been read.
+   */
+  private final void release ()
+    {
+      _buffer = null;
+      _next = _count = 0;
+    }
+
+  public void close () throws IOException
+    {
+      cancel();
+    }
+
+  public String toString ()
+    {
+      return "<Prefetch: " + _file + (_task.isDone() ? " (done)>" : ">");
+    }
+}
@@ -0,0 +1,282 @@
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+// PLEASE DO NOT EDIT WITHOUT THE EXPLICIT CONSENT OF THE AUTHOR! \\
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+
+package hlt.language.io;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+
+/**
+ * This is a tokenizer that does no scanning at all, but replays a token
+ * stream previously recorded with <tt>TokenCodec.encode</tt>. Its
+ * <tt>nextToken()</tt> returns the recorded tokens in order, setting
+ * <tt>ttype</tt>, <tt>sval</tt>, <tt>nval</tt>, <tt>isInteger</tt>, and
+ * the token's start and end locations and source positions exactly as the
+ * original tokenizer did. Pushing back and peeking tokens work as for any
+ * other tokenizer.
+ * <p>
+ * Since the syntax configuration is baked into the recorded stream,
+ * methods changing it have no effect on a <tt>ReplayStreamTokenizer</tt>.
+ *
+ * @see         TokenCodec
+ * @see         TokenCache
+ */
+
+public class ReplayStreamTokenizer extends AbstractStreamTokenizer
+{
+  /**
+   * Creates a <tt>ReplayStreamTokenizer</tt> for the specified encoded token
+   * stream.
+   *
+   * @throws    IOException (if the token stream is corrupted)
+   */
+  public ReplayStreamTokenizer (byte[] tokens) throws IOException
+    {
+      this(ByteBuffer.wrap(tokens));
+    }
+
+  /**
+   * Creates a <tt>ReplayStreamTokenizer</tt> for the encoded token stream
+   * held in the specified buffer between its position and its limit. The
+   * buffer may be a mapped one (see <tt>TokenFile</tt>); its position and
+   * limit are left untouched.
+   *
+   * @throws    IOException (if the token stream is corrupted or of another version)
+   */
+  public ReplayStreamTokenizer (ByteBuffer tokens) throws IOException
+    {
+      initializeCharInfo();
+
+      input = tokens.slice();
+
+      if (!TokenCodec.hasValidHeader(input))
+        throw new IOException("Not a token stream of version "+TokenCodec.VERSION);
+
+      int end = input.limit() - TokenCodec.TRAILER_SIZE;
+      long tableOffset = input.getLong(end);
+      remaining = input.getLong(end+8);
+
+      if (tableOffset < TokenCodec.HEADER_SIZE || tableOffset > end || remaining < 0)
+        throw new IOException("Corrupted token stream");
+
+      input.limit(end).position((int)tableOffset);
+      strings = TokenCodec.readStrings(input);
+
+      input.limit((int)tableOffset).position(TokenCodec.HEADER_SIZE);
+
+      // positions are encoded relative to this:
+      currentCharLine = currentCharCol = 0;
+      currentCharPosition = -1;
+    }
+
+  /**
+   * Returns the number of recorded tokens not yet replayed.
+   */
+  public final long remainingTokens ()
+    {
+      return remaining;
+    }
+
+  /**
+   * Reads a token and returns its type, which is also the value of <tt>ttype</tt>.
+   * Once all the tokens have been replayed, this keeps returning <tt>TT_EOF</tt>.
+   */
+  public final int nextToken () throws IOException
+    {
+      if (pushedBack)
+        {
+          pushedBack = false;
+          return ttype;
+        }
+
+      if (hasQueuedTokens())
+        return dequeueToken();
+
+      return scanNextToken();
+    }
+
+  final int scanToken () throws IOException
+    {
+      if (remaining == 0)
+        {
+          sval = null;
+          nval = Double.NaN;
+          isInteger = false;
+          return (ttype = TT_EOF);
+        }
+
+      try
+        {
+          int type;
+
+          sval = null;
+          nval = Double.NaN;
+          isInteger = false;
+
+          byte tag = input.get();
+
+          while (tag == TokenCodec.FILE)
+            {
+              file = string();
+              tag = input.get();
+            }
+
+          int kind = tag & TokenCodec.KIND_MASK;
+
+          switch (kind)
+            {
+            case TokenCodec.WORD:
+              type = TT_WORD;
+              sval = string();
+              break;
+            case TokenCodec.QUOTED:
+              type = leftQuote = TokenCodec.readIndex(input);
+              rightQuote = TokenCodec.readIndex(input);
+              sval = string();
+              break;
+            case TokenCodec.INTEGER:
+            case TokenCodec.INTEGRAL:
+              type = TT_NUMBER;
+              isInteger = kind == TokenCodec.INTEGER;
+              nval = (double)TokenCodec.readSignedVarint(input);
+              break;
+            case TokenCodec.HUGE:
+            case TokenCodec.REAL:
+              type = TT_NUMBER;
+              isInteger = kind == TokenCodec.HUGE;
+              nval = Double.longBitsToDouble(input.getLong());
+              break;
+            case TokenCodec.OTHER:
+              type = (int)TokenCodec.readSignedVarint(input);
+              break;
+            default:
+              throw new IOException("Corrupted token stream");
+            }
+
+          currentCharFile = file;
+          readPosition();
+          readSourcePosition();
+          setStartLocation();
+
+          if ((tag & TokenCodec.END_FILE) != 0)
+            currentCharFile = string();
+          readPosition();
+          readSourcePosition();
+          setEndLocation();
+
+          remaining--;
+
+          return (ttype = type);
+        }
+      catch (BufferUnderflowException e)
+        {
+          throw new IOException("Corrupted token stream");
+        }
+    }
+
+  /**
+   * Reads a position encoded relative to the previous one (see
+   * <tt>TokenCodec</tt>) and makes it the current character's.
+   */
+  private final void readPosition () throws IOException
+    {
+      int lines = (int)TokenCodec.readSignedVarint(input);
+
+      if (lines == 0)
+        currentCharCol += (int)TokenCodec.readSignedVarint(input);
+      else
+        {
+          currentCharLine += lines;
+          currentCharCol = TokenCodec.readIndex(input);
+        }
+    }
+
+  /**
+   * Reads a source position encoded relative to the previous one and makes
+   * it the current character's.
+   */
+  private final void readSourcePosition () throws IOException
+    {
+      currentCharPosition += TokenCodec.readSignedVarint(input);
+    }
+
+  /**
+   * Reads a string table index and returns the corresponding string.
+   */
+  private final String string () throws IOException
+    {
+      int index = TokenCodec.readIndex(input);
+
+      if (index >= strings.length)
+        throw new IOException("Corrupted token stream");
+
+      return strings[index];
+    }
+
+  /**
+   * This has no effect on a replayed token stream.
+   */
+  public final void commentChar (int c)
+    {
+    }
+
+  /**
+   * This has no effect on a replayed token stream.
+   */
+  public final void slashSlashComments (boolean flag)
+    {
+    }
+
+  /**
+   * This has no effect on a replayed token stream.
+   */
+  public final void slashStarComments (boolean flag)
+    {
+    }
+
+  /**
+   * This has no effect on a replayed token stream.
+   */
+  public final void enableComments ()
+    {
+    }
+
+  /**
+   * This has no effect on a replayed token stream.
+   */
+  public final void disableComments ()
+    {
+    }
+
+  //\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+  // The following are private facilities...
+  //\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+
+  private ByteBuffer input;
+
+  /**
+   * The file in which the next token starts.
+   */
+  private String file;
+
+  /**
+   * The decoded string table; entry 0 is <tt>null</tt>.
+   */
+  private String[] strings;
+
+  /**
+   * The number of recorded tokens not yet replayed.
+   */
+  private long remaining;
+
+  final void readFollowingChar () throws IOException
+    {
+    }
+
+  final void readDecimal () throws IOException
+    {
+    }
+}
@@ -0,0 +1,377 @@
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+// PLEASE DO NOT EDIT WITHOUT THE EXPLICIT CONSENT OF THE AUTHOR! \\
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+
+package hlt.language.io;
+
+import java.io.Reader;
+import java.io.IOException;
+
+import java.nio.charset.Charset;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import java.util.Map;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This is a thread-safe cache of decoded file contents, meant to be shared
+ * by all the <tt>IncludeReader</tt>s of a process (see <tt>shared()</tt>
+ * and <tt>IncludeReader.setSourceCache</tt>) so that a file included over
+ * and over again is read and decoded only once. An entry is keyed by the
+ * file's real path, and is valid as long as the file's size and last
+ * modification time are those it had when read; a stale entry is simply
+ * read again. A cached file is read through a <tt>CharSequenceReader</tt>
+ * on the cached contents, which are not copied.
+ * <p>
+ * The cache holds at most a given number of bytes (counting two bytes per
+ * character). Entries are spread over several stripes, each with its own
+ * lock and kept in least recently used first order; when the cache is full,
+ * the least recently used entries of a stripe are evicted. A file larger
+ * than the whole cache is not cached, but read directly.
+ *
+ * @see         CharSequenceReader
+ * @see         IncludeReader
+ */
+
+public class SourceCache
+{
+  /**
+   * The default maximum number of bytes held by the shared cache, which may
+   * be set with the system property <tt>hlt.language.io.sourceCache.maxBytes</tt>.
+   */
+  public static final long DEFAULT_MAX_BYTES
+    = Long.getLong("hlt.language.io.sourceCache.maxBytes",64L<<20);
+
+  /**
+   * The number of stripes (a power of 2).
+   */
+  private static final int STRIPES = 16;
+
+  /**
+   * The approximate number of bytes taken by an entry besides its contents.
+   */
+  private static final int ENTRY_OVERHEAD = 128;
+
+  private static SourceCache _shared;
+
+  /**
+   * Returns the process-wide cache, creating it with a maximum size of
+   * <tt>DEFAULT_MAX_BYTES</tt> and the default charset on first use.
+   */
+  public static synchronized SourceCache shared ()
+    {
+      if (_shared == null)
+        _shared = new SourceCache(DEFAULT_MAX_BYTES);
+
+      return _shared;
+    }
+
+  /**
+   * An entry: the contents of a file along with the attributes it had when
+   * read.
+   */
+  private static final class Entry
+    {
+      final String contents;
+      final long size;
+      final FileTime lastModified;
+
+      Entry (String contents, BasicFileAttributes attributes)
+        {
+          this.contents = contents;
+          size = attributes.size();
+          lastModified = attributes.lastModifiedTime();
+        }
+
+      final boolean isValid (BasicFileAttributes attributes)
+        {
+          return size == attributes.size() && lastModified.equals(attributes.lastModifiedTime());
+        }
+
+      final long bytes ()
+        {
+          return 2L*contents.length() + ENTRY_OVERHEAD;
+        }
+    }
+
+  /**
+   * A stripe: a map from real paths to entries, in least recently used first
+   * order, which is also the lock guarding it.
+   */
+  @SuppressWarnings("serial")
+  private static final class Stripe extends LinkedHashMap<String,Entry>
+    {
+      Stripe ()
+        {
+          super(16,0.75f,true);
+        }
+    }
+
+  private final Stripe[] _stripes = new Stripe[STRIPES];
+
+  private volatile long _maxBytes;
+  private final Charset _charset;
+
+  private final AtomicLong _bytes = new AtomicLong();
+  private final AtomicLong _hits = new AtomicLong();
+  private final AtomicLong _misses = new AtomicLong();
+
+  /**
+   * Constructs a <tt>SourceCache</tt> holding at most the specified number
+   * of bytes, and decoding files with the default charset.
+   */
+  public SourceCache (long maxBytes)
+    {
+      this(maxBytes,Charset.defaultCharset());
+    }
+
+  /**
+   * Constructs a <tt>SourceCache</tt> holding at most the specified number
+   * of bytes, and decoding files with the specified charset.
+   */
+  public SourceCache (long maxBytes, Charset charset)
+    {
+      _maxBytes = maxBytes;
+      _charset = charset;
+
+      for (int i = 0; i < STRIPES; i++)
+        _stripes[i] = new Stripe();
+    }
+
+  /**
+   * Returns the contents of the specified file, reading and caching them if
+   * they are not cached or the cached ones are stale.
+   *
+   * @throws    IOException (if the file cannot be read)
+   */
+  public final CharSequence contents (String file) throws IOException
+    {
+      Path path = Paths.get(file).toRealPath();
+      BasicFileAttributes attributes = Files.readAttributes(path,BasicFileAttributes.class);
+      Entry entry = lookup(path.toString(),attributes);
+
+      return entry != null ? entry.contents : load(path,attributes).contents;
+    }
+
+  /**
+   * Returns a reader of the contents of the specified file, which are
+   * cached as for <tt>contents(String)</tt>, unless the file is too large to
+   * be cached, in which case it is read directly, by a
+   * <tt>FileChannelReader</tt>, which may be suspended and counts against
+   * the limit on open files as when there is no cache (see
+   * <tt>IncludeReader.setOpenFileLimit</tt>).
+   *
+   * @throws    IOException (if the file cannot be read)
+   */
+  public final Reader reader (String file) throws IOException
+    {
+      Path path = Paths.get(file).toRealPath();
+      BasicFileAttributes attributes = Files.readAttributes(path,BasicFileAttributes.class);
+      Entry entry = lookup(path.toString(),attributes);
+
+      if (entry != null)
+        return new CharSequenceReader(entry.contents);
+
+      if (2*attributes.size() + ENTRY_OVERHEAD > _maxBytes)
+        {
+          _misses.incrementAndGet();
+          return new FileChannelReader(path,_charset);
+        }
+
+      return new CharSequenceReader(load(path,attributes).contents);
+    }
+
+  /**
+   * Drops the entry of the specified file, if any.
+   *
+   * @throws    IOException (if the file's real path cannot be determined)
+   */
+  public final void invalidate (String file) throws IOException
+    {
+      String key = Paths.get(file).toRealPath().toString();
+      Stripe stripe = stripe(key);
+
+      synchronized (stripe)
+        {
+          Entry entry = stripe.remove(key);
+          if (entry != null)
+            _bytes.addAndGet(-entry.bytes());
+        }
+    }
+
+  /**
+   * Sets the maximum number of bytes held by this cache, evicting entries as
+   * needed.
+   */
+  public final void setMaxBytes (long maxBytes)
+    {
+      _maxBytes = maxBytes;
+      evict(0);
+    }
+
+  /**
+   * Returns the maximum number of bytes held by this cache.
+   */
+  public final long maxBytes ()
+    {
+      return _maxBytes;
+    }
+
+  /**
+   * Returns the number of lookups that found valid contents in the cache.
+   */
+  public final long hits ()
+    {
+      return _hits.get();
+    }
+
+  /**
+   * Returns the number of lookups that had to read the file.
+   */
+  public final long misses ()
+    {
+      return _misses.get();
+    }
+
+  /**
+   * Returns the number of bytes currently held.
+   */
+  public final long size ()
+    {
+      return _bytes.get();
+    }
+
+  /**
+   * Empties the cache.
+   */
+  public final void clear ()
+    {
+      for (int i = 0; i < STRIPES; i++)
+        synchronized (_stripes[i])
+          {
+            for (Entry entry : _stripes[i].values())
+              _bytes.addAndGet(-entry.bytes());
+            _stripes[i].clear();
+          }
+    }
+
+  /**
+   * Returns a string form describing the current state of the cache.
+   */
+  public String toString ()
+    {
+      int entries = 0;
+      for (int i = 0; i < STRIPES; i++)
+        synchronized (_stripes[i])
+          {
+            entries += _stripes[i].size();
+          }
+
+      return "<SourceCache: " + entries + " entries, " +
+             size() + "/" + _maxBytes + " bytes, " +
+             hits() + " hits, " + misses() + " misses>";
+    }
+
+  /* ======================================================================= */
+
+  private static final int stripeIndex (String key)
+    {
+      int hash = key.hashCode();
+      return (hash ^ (hash >>> 16)) & (STRIPES-1);
+    }
+
+  private final Stripe stripe (String key)
+    {
+      return _stripes[stripeIndex(key)];
+    }
+
+  /**
+   * Returns the valid entry for the specified key, or <tt>null</tt>. A stale
+   * entry is dropped.
+   */
+  private final Entry lookup (String key, BasicFileAttributes attributes)
+    {
+      Stripe stripe = stripe(key);
+
+      synchronized (stripe)
+        {
+          Entry entry = stripe.get(key);
+
+          if (entry != null)
+            {
+              if (entry.isValid(attributes))
+                {
+                  _hits.incrementAndGet();
+                  return entry;
+                }
+
+              stripe.remove(key);
+              _bytes.addAndGet(-entry.bytes());
+            }
+        }
+
+      return null;
+    }
+
+  /**
+   * Reads the specified file and caches its contents. The file is read
+   * without holding any lock, so that files are read concurrently; if two
+   * threads read the same file at once, the latest entry wins.
+   */
+  private final Entry load (Path path, BasicFileAttributes attributes) throws IOException
+    {
+      _misses.incrementAndGet();
+
+      Entry entry = new Entry(new String(Files.readAllBytes(path),_charset),attributes);
+      long bytes = entry.bytes();
+
+      if (bytes > _maxBytes)
+        return entry;
+
+      String key = path.toString();
+      int index = stripeIndex(key);
+      Stripe stripe = _stripes[index];
+
+      synchronized (stripe)
+        {
+          Entry old = stripe.put(key,entry);
+          if (old != null)
+            bytes -= old.bytes();
+          _bytes.addAndGet(bytes);
+        }
+
+      evict(index);
+      return entry;
+    }
+
+  /**
+   * Evicts the least recently used entries, starting with the specified
+   * stripe and going round the others, until the cache holds no more than
+   * its maximum number of bytes.
+   */
+  private final void evict (int first)
+    {
+      for (int i = 0; i < STRIPES && _bytes.get() > _maxBytes; i++)
+        {
+          Stripe stripe = _stripes[(first+i) & (STRIPES-1)];
+
+          synchronized (stripe)
+            {
+              Iterator<Map.Entry<String,Entry>> entries = stripe.entrySet().iterator();
+              while (_bytes.get() > _maxBytes && entries.hasNext())
+                {
+                  _bytes.addAndGet(-entries.next().getValue().bytes());
+                  entries.remove();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+// PLEASE DO NOT EDIT WITHOUT THE EXPLICIT CONSENT OF THE AUTHOR! \\
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+
+package hlt.language.io;
+
+import hlt.language.util.Location;
+
+import java.util.Arrays;
+
+/**
+ * This is the map of the positions of the characters read by an
+ * <tt>IncludeReader</tt>, across all its inclusions, to the files, lines,
+ * and columns they were read from. A position is a single <tt>long</tt>
+ * (see <tt>IncludeReader.getSourcePosition()</tt>), so that a client may
+ * keep the position of each token it reads instead of a <tt>Location</tt>,
+ * and have it located only when needed (see
+ * <tt>AbstractStreamTokenizer.tokenStartPosition()</tt>).
+ * <p>
+ * Positions increase monotonically as the reader proceeds: by one for each
+ * character read, and by one for each inclusion seam, so that the start
+ * and end of an inclusion have positions of their own. The map is built as
+ * inclusions proceed; it consists of:
+ * <ul>
+ * <li> a table of the sources read, each being one reading of a file (or
+ *      of a reader with no file), along with the index of its line breaks
+ *      (see <tt>LineIndex</tt>);
+ * <li> a table of the intervals of positions read from each source,
+ *      recording for each the position it starts at, its source, and the
+ *      offset in the source of its first position.
+ * </ul>
+ * Both tables are kept as arrays of primitives grown geometrically, so the
+ * map takes a few bytes per inclusion seam, plus four per line read. Locating
+ * a position takes a binary search among the intervals, save for positions
+ * in the same interval as the previous lookup, and then one in the line
+ * index of its source.
+ * <p>
+ * A source map records the positions of a single <tt>IncludeReader</tt>
+ * (see <tt>IncludeReader.setSourceMap</tt>); positions read before it was
+ * set are not mapped. It is not synchronized.
+ *
+ * @see         IncludeReader
+ * @see         LineIndex
+ */
+
+public final class SourceMap
+{
+  /**
+   * The sources: the name of the file of each (<tt>null</tt> if it is not
+   * read from a file), and the index of its line breaks.
+   */
+  private String[] _files = new String[16];
+  private LineIndex[] _lines = new LineIndex[16];
+  private int _sourceCount = 0;
+
+  /**
+   * The intervals: the position at which each starts, its source, and the
+   * offset in the source of its first position.
+   */
+  private long[] _starts = new long[16];
+  private int[] _sources = new int[16];
+  private int[] _offsets = new int[16];
+  private int _intervalCount = 0;
+
+  /**
+   * The index of the interval found by the latest lookup.
+   */
+  private int _latest = 0;
+
+  /**
+   * Records a new source reading the specified file (or <tt>null</tt>),
+   * the line breaks of which are recorded in the specified index, and
+   * returns its number.
+   */
+  final int addSource (String file, LineIndex lines)
+    {
+      if (_sourceCount == _files.length)
+        {
+          _files = Arrays.copyOf(_files,2*_sourceCount);
+          _lines = Arrays.copyOf(_lines,2*_sourceCount);
+        }
+
+      _files[_sourceCount] = file;
+      _lines[_sourceCount] = lines;
+
+      return _sourceCount++;
+    }
+
+  /**
+   * Records that the positions from the specified one on are read from the
+   * specified source, starting at the specified offset in it.
+   *
+   * @throws    IllegalArgumentException (if the position does not follow those
+   *            of the intervals recorded so far)
+   */
+  final void addInterval (long start, int source, int offset)
+    {
+      if (_intervalCount > 0 && start <= _starts[_intervalCount-1])
+        throw new IllegalArgumentException("Source map position out of order: "+start);
+
+      if (_intervalCount == _starts.length)
+        {
+          _starts = Arrays.copyOf(_starts,2*_intervalCount);
+          _sources = Arrays.copyOf(_sources,2*_intervalCount);
+          _offsets = Arrays.copyOf(_offsets,2*_intervalCount);
+        }
+
+      _starts[_intervalCount] = start;
+      _sources[_intervalCount] = source;
+      _offsets[_intervalCount] = offset;
+      _intervalCount++;
+    }
+
+  /**
+   * Returns the number of sources recorded so far.
+   */
+  public final int sourceCount ()
+    {
+      return _sourceCount;
+    }
+
+  /**
+   * Returns the number of intervals recorded so far.
+   */
+  public final int intervalCount ()
+    {
+      return _intervalCount;
+    }
+
+  /**
+   * Returns the name of the file the specified position was read from, or
+   * <tt>null</tt> if it was not read from a file.
+   *
+   * @throws    IllegalArgumentException (if the position is not mapped)
+   */
+  public final String file (long position)
+    {
+      return _files[_sources[interval(position)]];
+    }
+
+  /**
+   * Returns the line number of the specified position in its file.
+   *
+   * @throws    IllegalArgumentException (if the position is not mapped)
+   */
+  public final int line (long position)
+    {
+      int i = interval(position);
+      return _lines[_sources[i]].line(offset(i,position));
+    }
+
+  /**
+   * Returns the column number of the specified position in its file.
+   *
+   * @throws    IllegalArgumentException (if the position is not mapped)
+   */
+  public final int column (long position)
+    {
+      int i = interval(position);
+      return _lines[_sources[i]].column(offset(i,position));
+    }
+
+  /**
+   * Returns the location (file, line, and column) of the specified position.
+   *
+   * @throws    IllegalArgumentException (if the position is not mapped)
+   */
+  public final Location location (long position)
+    {
+      int i = interval(position);
+      LineIndex lines = _lines[_sources[i]];
+      int offset = offset(i,position);
+
+      return new Location(_files[_sources[i]],lines.line(offset),lines.column(offset));
+    }
+
+  /**
+   * Returns the offset in its source of the specified position, which is in
+   * the specified interval.
+   */
+  private final int offset (int interval, long position)
+    {
+      return _offsets[interval] + (int)(position - _starts[interval]);
+    }
+
+  /**
+   * Returns the index of the interval of the specified position: the last
+   * one starting at or before it.
+   *
+   * @throws    IllegalArgumentException (if the position is not mapped)
+   */
+  private final int interval (long position)
+    {
+      if (_intervalCount == 0 || position < _starts[0])
+        throw new IllegalArgumentException("Unmapped source position: "+position);
+
+      int i = _latest;
+
+      if (i < _intervalCount && _starts[i] <= position
+          && (i+1 == _intervalCount || _starts[i+1] > position))
+        return i;
+
+      i = Arrays.binarySearch(_starts,0,_intervalCount,position);
+      if (i < 0) i = -i-2;
+
+      return _latest = i;
+    }
+
+  public final String toString ()
+    {
+      return "<SourceMap: " + _sourceCount + " sources, " + _intervalCount + " intervals>";
+    }
+}
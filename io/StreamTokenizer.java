@@ -113,6 +113,18 @@ public class StreamTokenizer extends AbstractStreamTokenizer
             return ttype;
         }
 
+      if (hasQueuedTokens())
+        return dequeueToken();
+
+      return scanNextToken();
+    }
+
+  /**
+   * Scans the next token from the input and returns its type. This does
+   * not take pushed back or queued tokens into account.
+   */
+  final int scanToken () throws IOException
+    {
       sval = null;
       nval = Double.NaN;
       isInteger = false;
@@ -128,17 +140,17 @@ public class StreamTokenizer extends AbstractStreamTokenizer
           return (ttype = TT_EOF);
         case TT_NOTHING:
 	  setEndLocation();
-          return nextToken();
+          return scanToken();
         case '/':
           if (followingChar == '/' && slashSlashComments)
             {
               skipLine();
-              return nextToken();
+              return scanToken();
             }
           if (followingChar == '*' && slashStarComments)
             {
               skipComment();
-              return nextToken();
+              return scanToken();
             }
         }
       
@@ -149,7 +161,7 @@ public class StreamTokenizer extends AbstractStreamTokenizer
           return (ttype = TT_SPECIAL);
         case COMMENT:
           skipLine();
-          return nextToken();
+          return scanToken();
         case WHITESPACE:
           if (currentChar == IO.EOL && eolIsSignificant)
 	    {
@@ -161,7 +173,7 @@ public class StreamTokenizer extends AbstractStreamTokenizer
 	      setEndLocation();
 	      return (ttype = currentChar);
 	    }
-          return nextToken();
+          return scanToken();
         case ORDINARY:
 	  setEndLocation();
           return (ttype = currentChar);
@@ -231,6 +243,11 @@ public class StreamTokenizer extends AbstractStreamTokenizer
       typePrecedence[4] = fifth;
     }
 
+  final String commentSyntax ()
+    {
+      return (slashSlashComments ? "//" : "") + (slashStarComments ? "/**/" : "");
+    }
+
   //\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
   // The following are private facilities...
   //\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
@@ -242,9 +259,20 @@ public class StreamTokenizer extends AbstractStreamTokenizer
 
   private final void skipComment () throws IOException
     {
+      long start = charCount;
+      // the line is only computed if the event is recorded:
+      LineIndex lines = currentCharLines;
+      int offset = currentCharOffset;
+      int line = currentCharLine;
+      int length = 1;
+
+      IOEvents.CommentSkip event = new IOEvents.CommentSkip();
+      event.begin();
+
       do
 	{
 	  nextChar();
+	  length++;
 	  if (currentChar == IO.EOF)
 	    throw new IOException
 	      ("Premature end of file while reading a comment: (line,col) = "
@@ -252,6 +280,11 @@ public class StreamTokenizer extends AbstractStreamTokenizer
 	}
       while (currentChar != '*' || followingChar != '/');
       nextChar();
+
+      event.record(currentCharFile,lines,offset,line,length+1);
+
+      if (TokenizerMetrics.ENABLED)
+        commentCharCount += charCount - start;
     }
 
   final void readFollowingChar () throws IOException
@@ -260,6 +293,7 @@ public class StreamTokenizer extends AbstractStreamTokenizer
         {
           followingChar = input.read();
           followingCharCol++;
+          if (TokenizerMetrics.ENABLED && followingChar != TT_EOF) charCount++;
         }
 
       // throw away possible ^M garbage inherited from MacroHard:
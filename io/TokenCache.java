@@ -0,0 +1,351 @@
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+// PLEASE DO NOT EDIT WITHOUT THE EXPLICIT CONSENT OF THE AUTHOR! \\
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+
+package hlt.language.io;
+
+import java.io.File;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.AtomicMoveNotSupportedException;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Map;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * This is a cache of complete token streams for files that are tokenized
+ * over and over again. An entry is keyed by the hash of the file's contents
+ * together with the syntax fingerprint of the tokenizer (see
+ * <tt>AbstractStreamTokenizer.syntaxFingerprint()</tt>) and the charset
+ * the contents are decoded with, and holds the token stream in the compact
+ * form defined by <tt>TokenCodec</tt>. On a hit, the tokens are replayed
+ * by a <tt>ReplayStreamTokenizer</tt>: the file's contents are neither
+ * decoded nor scanned.
+ * <p>
+ * There are two tiers: an in-memory one holding at most a given number of
+ * bytes, from which the least recently used entries are evicted, and an
+ * optional on-disk one, in a given directory, that persists across runs.
+ * <p>
+ * <b>NB:</b> a cached file is tokenized as a whole, on its own. This is
+ * thus only meant for files whose tokens do not depend on inclusions
+ * driven by the client while tokenizing.
+ *
+ * @see         TokenCodec
+ * @see         ReplayStreamTokenizer
+ */
+
+public class TokenCache
+{
+  /**
+   * The interface of tokenizer factories used to tokenize files that are
+   * not in the cache.
+   */
+  public static interface Factory
+    {
+      /**
+       * Returns a tokenizer for the specified reader, set up with the syntax
+       * with which the files are to be tokenized.
+       */
+      public AbstractStreamTokenizer tokenizer (Reader reader);
+    }
+
+  /**
+   * The maximum number of bytes held in memory.
+   */
+  private long _maxBytes;
+
+  /**
+   * The number of bytes currently held in memory.
+   */
+  private long _bytes = 0;
+
+  /**
+   * The directory of the on-disk tier, or <tt>null</tt> if there is none.
+   */
+  private Path _directory;
+
+  /**
+   * The in-memory tier, in least recently used first order.
+   */
+  private LinkedHashMap<String,byte[]> _entries
+    = new LinkedHashMap<String,byte[]>(16,0.75f,true);
+
+  private long _hits = 0;
+  private long _misses = 0;
+
+  /**
+   * Constructs a memory-only <tt>TokenCache</tt> holding at most the
+   * specified number of bytes.
+   */
+  public TokenCache (long maxBytes)
+    {
+      _maxBytes = maxBytes;
+    }
+
+  /**
+   * Constructs a <tt>TokenCache</tt> holding at most the specified number of
+   * bytes in memory, and backed by the specified directory, which is created
+   * if needed.
+   *
+   * @throws    IOException (if the directory cannot be created)
+   */
+  public TokenCache (long maxBytes, File directory) throws IOException
+    {
+      _maxBytes = maxBytes;
+      _directory = directory.toPath();
+      Files.createDirectories(_directory);
+    }
+
+  /**
+   * Returns a tokenizer delivering the tokens of the specified file as would
+   * a tokenizer made by the specified factory reading it through an
+   * <tt>IncludeReader</tt> with the default charset. If the tokens are not
+   * already cached, the file is tokenized and the result is cached.
+   *
+   * @throws    IOException (if an I/O error occurs)
+   */
+  public AbstractStreamTokenizer tokenizer (String file, Factory factory) throws IOException
+    {
+      return tokenizer(file,factory,Charset.defaultCharset());
+    }
+
+  /**
+   * Returns a tokenizer delivering the tokens of the specified file as would
+   * a tokenizer made by the specified factory reading it through an
+   * <tt>IncludeReader</tt> decoding it with the specified charset (see
+   * <tt>IncludeReader.setCharset</tt>). If the tokens are not already
+   * cached, the file is tokenized and the result is cached. The same
+   * contents decoded with different charsets are cached separately.
+   *
+   * @throws    IOException (if an I/O error occurs)
+   */
+  public AbstractStreamTokenizer tokenizer (String file, Factory factory, Charset charset)
+    throws IOException
+    {
+      byte[] contents = Files.readAllBytes(Paths.get(file));
+      long fingerprint = factory.tokenizer(new StringReader("")).syntaxFingerprint();
+      String key = key(contents,fingerprint,charset);
+
+      byte[] tokens = get(key);
+
+      if (tokens == null)
+        {
+          IncludeReader reader = new IncludeReader(new StringReader(new String(contents,charset)));
+          reader.setFile(file);
+
+          tokens = TokenCodec.encode(factory.tokenizer(reader));
+          put(key,tokens);
+        }
+
+      return new ReplayStreamTokenizer(tokens);
+    }
+
+  /**
+   * Returns the number of lookups that were found in the cache.
+   */
+  public final synchronized long hits ()
+    {
+      return _hits;
+    }
+
+  /**
+   * Returns the number of lookups that were not found in the cache.
+   */
+  public final synchronized long misses ()
+    {
+      return _misses;
+    }
+
+  /**
+   * Returns the number of bytes currently held in memory.
+   */
+  public final synchronized long size ()
+    {
+      return _bytes;
+    }
+
+  /**
+   * Empties the in-memory tier (the on-disk tier is left untouched).
+   */
+  public final synchronized void clear ()
+    {
+      _entries.clear();
+      _bytes = 0;
+    }
+
+  /**
+   * Returns a string form describing the current state of the cache.
+   */
+  public String toString ()
+    {
+      return "<TokenCache: " + _entries.size() + " entries, " +
+             _bytes + "/" + _maxBytes + " bytes, " +
+             _hits + " hits, " + _misses + " misses>";
+    }
+
+  /* ======================================================================= */
+
+  /**
+   * Returns the cache key for the specified contents, fingerprint, and
+   * charset.
+   */
+  private static String key (byte[] contents, long fingerprint, Charset charset)
+    {
+      return digest(contents) + '-' + Long.toHexString(fingerprint) + '-' + charset.name();
+    }
+
+  /**
+   * Returns the SHA-256 digest of the specified contents, in hexadecimal.
+   */
+  static String digest (byte[] contents)
+    {
+      try
+        {
+          byte[] digest = MessageDigest.getInstance("SHA-256").digest(contents);
+          StringBuilder hex = new StringBuilder(2*digest.length);
+
+          for (int i = 0; i < digest.length; i++)
+            hex.append(Character.forDigit((digest[i] >> 4) & 0xf,16))
+               .append(Character.forDigit(digest[i] & 0xf,16));
+
+          return hex.toString();
+        }
+      catch (NoSuchAlgorithmException e)
+        {
+          throw new RuntimeException(e); // SHA-256 is always available
+        }
+    }
+
+  /**
+   * Returns the cached tokens for the specified key, or <tt>null</tt>.
+   */
+  private byte[] get (String key) throws IOException
+    {
+      synchronized (this)
+        {
+          byte[] tokens = _entries.get(key);
+
+          if (tokens != null)
+            {
+              _hits++;
+              return tokens;
+            }
+        }
+
+      byte[] tokens = readEntry(key);
+
+      synchronized (this)
+        {
+          if (tokens == null)
+            _misses++;
+          else
+            {
+              _hits++;
+              remember(key,tokens);
+            }
+        }
+
+      return tokens;
+    }
+
+  /**
+   * Caches the specified tokens under the specified key.
+   */
+  private void put (String key, byte[] tokens) throws IOException
+    {
+      synchronized (this)
+        {
+          remember(key,tokens);
+        }
+
+      writeEntry(key,tokens);
+    }
+
+  /**
+   * Adds an entry to the in-memory tier, evicting the least recently used
+   * ones as needed to stay within the memory bound.
+   */
+  private void remember (String key, byte[] tokens)
+    {
+      if (tokens.length > _maxBytes)
+        return;
+
+      byte[] old = _entries.put(key,tokens);
+      if (old != null)
+        _bytes -= old.length;
+      _bytes += tokens.length;
+
+      Iterator<Map.Entry<String,byte[]>> entries = _entries.entrySet().iterator();
+      while (_bytes > _maxBytes && entries.hasNext())
+        {
+          _bytes -= entries.next().getValue().length;
+          entries.remove();
+        }
+    }
+
+  /**
+   * Reads the entry for the specified key from the on-disk tier, if any.
+   * Entries with a bad header, such as those written with another version
+   * of the token stream format, are ignored.
+   */
+  private byte[] readEntry (String key) throws IOException
+    {
+      if (_directory == null)
+        return null;
+
+      Path path = _directory.resolve(key);
+
+      if (!Files.isRegularFile(path))
+        return null;
+
+      byte[] tokens = Files.readAllBytes(path);
+
+      if (!TokenCodec.hasValidHeader(ByteBuffer.wrap(tokens)))
+        return null;
+
+      return tokens;
+    }
+
+  /**
+   * Writes the entry for the specified key to the on-disk tier, if any.
+   * The entry is written to a temporary file first, then renamed, so that
+   * concurrent readers never see a partial entry.
+   */
+  private void writeEntry (String key, byte[] tokens) throws IOException
+    {
+      if (_directory == null)
+        return;
+
+      Path temp = Files.createTempFile(_directory,key,".tmp");
+
+      try
+        {
+          Files.write(temp,tokens);
+          try
+            {
+              Files.move(temp,_directory.resolve(key),StandardCopyOption.ATOMIC_MOVE);
+            }
+          catch (AtomicMoveNotSupportedException e)
+            {
+              Files.move(temp,_directory.resolve(key),StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+      finally
+        {
+          Files.deleteIfExists(temp);
+        }
+    }
+}
@@ -0,0 +1,491 @@
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+// PLEASE DO NOT EDIT WITHOUT THE EXPLICIT CONSENT OF THE AUTHOR! \\
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+
+package hlt.language.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.ByteArrayOutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+
+import java.util.HashMap;
+import java.util.ArrayList;
+
+/**
+ * This class defines the compact binary form in which the complete token
+ * stream of a tokenizer may be recorded, to be replayed later by a
+ * <tt>ReplayStreamTokenizer</tt>. A recorded stream consists of:
+ * <ol>
+ * <li> a header made of the magic number <tt>"HLTK"</tt> and the format
+ *      version, both as 4-byte big-endian integers;
+ * <li> the sequence of tokens up to and including the final <tt>TT_EOF</tt>,
+ *      each consisting of a tag byte, the token's value (a string table
+ *      index, a typed number, or the token type), and its start and end
+ *      positions and source positions (see <tt>tokenStartPosition()</tt>),
+ *      each relative to the one before; a <tt>FILE</tt> record
+ *      precedes any token starting in a different file from the previous
+ *      one, thus marking inclusion boundaries;
+ * <li> a table of all the distinct strings (word values, quoted word values,
+ *      and file names) appearing in the stream, each stored once;
+ * <li> a trailer made of the offset of the string table and the number of
+ *      tokens, both as 8-byte big-endian integers.
+ * </ol>
+ * Other integers are written as variable-length quantities (7 bits per
+ * byte, least significant group first), signed ones being zigzag-encoded
+ * first. Since the string table comes last, a stream can be encoded
+ * on the fly to an <tt>OutputStream</tt> whatever the number of tokens.
+ *
+ * @see         ReplayStreamTokenizer
+ * @see         TokenFile
+ * @see         TokenCache
+ */
+
+public final class TokenCodec
+{
+  /**
+   * The magic number starting an encoded token stream ("HLTK").
+   */
+  static final int MAGIC = 0x484c544b;
+
+  /**
+   * The version of the format; streams of any other version are rejected.
+   */
+  static final int VERSION = 3;
+
+  /**
+   * The sizes of the header and trailer.
+   */
+  static final int HEADER_SIZE = 8;
+  static final int TRAILER_SIZE = 16;
+
+  /**
+   * Token tags:
+   */
+  static final byte WORD     = 0;       // word: string index
+  static final byte QUOTED   = 1;       // quoted word: left and right quotes, string index
+  static final byte INTEGER  = 2;       // integer number: long value
+  static final byte INTEGRAL = 3;       // non-integer number with an integral value: long value
+  static final byte REAL     = 4;       // non-integer number: double bits
+  static final byte HUGE     = 5;       // integer number out of long range: double bits
+  static final byte OTHER    = 6;       // any other token: token type
+  static final byte FILE     = 7;       // not a token: string index of the file of what follows
+
+  /**
+   * This flag is set on the tag of a token ending in a different file from
+   * that it starts in; the end file's string index then precedes the end
+   * position.
+   */
+  static final byte END_FILE = 0x10;
+
+  static final byte KIND_MASK = 0x0f;
+
+  /**
+   * The number of bytes buffered before writing them out.
+   */
+  private static final int BLOCK_SIZE = 1 << 16;
+
+  private TokenCodec ()
+    {
+    }
+
+  /**
+   * Reads all the tokens of the specified tokenizer up to and including
+   * <tt>TT_EOF</tt>, and returns their encoded form.
+   *
+   * @throws    IOException (if an I/O error occurs while tokenizing)
+   */
+  public static byte[] encode (AbstractStreamTokenizer tokenizer) throws IOException
+    {
+      ByteArrayOutputStream stream = new ByteArrayOutputStream(1024);
+      encode(tokenizer,stream);
+      return stream.toByteArray();
+    }
+
+  /**
+   * Reads all the tokens of the specified tokenizer up to and including
+   * <tt>TT_EOF</tt>, and writes their encoded form to the specified stream.
+   * Returns the number of bytes written.
+   *
+   * @throws    IOException (if an I/O error occurs)
+   */
+  public static long encode (AbstractStreamTokenizer tokenizer, OutputStream stream)
+    throws IOException
+    {
+      return encode(tokenizer,stream,null);
+    }
+
+  /**
+   * The interface of objects told of each token as it is encoded.
+   */
+  static interface Listener
+    {
+      /**
+       * Called once the specified tokenizer's current token, the specified
+       * number of tokens from the start, has been encoded.
+       */
+      public void encoded (AbstractStreamTokenizer tokenizer, long count) throws IOException;
+    }
+
+  /**
+   * Same as <tt>encode(AbstractStreamTokenizer,OutputStream)</tt>, telling
+   * the specified listener, unless it is <tt>null</tt>, of each token encoded
+   * but the final <tt>TT_EOF</tt>.
+   */
+  static long encode (AbstractStreamTokenizer tokenizer, OutputStream stream, Listener listener)
+    throws IOException
+    {
+      Encoder encoder = new Encoder(stream);
+
+      encoder.out.writeInt(MAGIC);
+      encoder.out.writeInt(VERSION);
+
+      for (;;)
+        {
+          tokenizer.nextToken();
+          encoder.encode(tokenizer);
+
+          if (tokenizer.ttype == AbstractStreamTokenizer.TT_EOF)
+            break;
+
+          if (listener != null)
+            listener.encoded(tokenizer,encoder.count);
+        }
+
+      return encoder.finish();
+    }
+
+  /**
+   * Returns <tt>true</tt> iff the specified buffer, from its position to its
+   * limit, looks like a token stream of the current version.
+   */
+  static boolean hasValidHeader (ByteBuffer buffer)
+    {
+      return buffer.remaining() >= HEADER_SIZE + TRAILER_SIZE
+          && buffer.getInt(buffer.position()) == MAGIC
+          && buffer.getInt(buffer.position()+4) == VERSION;
+    }
+
+  /* ======================================================================= */
+
+  /**
+   * Reads an unsigned variable-length integer from the specified buffer.
+   *
+   * @throws    IOException (if the buffer does not hold a well-formed integer)
+   */
+  static long readVarint (ByteBuffer buffer) throws IOException
+    {
+      try
+        {
+          long value = 0;
+
+          for (int shift = 0; shift < 64; shift += 7)
+            {
+              byte b = buffer.get();
+              value |= (long)(b & 0x7f) << shift;
+              if (b >= 0)
+                return value;
+            }
+        }
+      catch (BufferUnderflowException e)
+        {
+        }
+
+      throw new IOException("Corrupted token stream");
+    }
+
+  /**
+   * Reads a zigzag-encoded signed variable-length integer from the specified buffer.
+   */
+  static long readSignedVarint (ByteBuffer buffer) throws IOException
+    {
+      long value = readVarint(buffer);
+      return (value >>> 1) ^ -(value & 1);
+    }
+
+  /**
+   * Reads an unsigned variable-length integer that must fit in an <tt>int</tt>.
+   */
+  static int readIndex (ByteBuffer buffer) throws IOException
+    {
+      long value = readVarint(buffer);
+
+      if (value > Integer.MAX_VALUE)
+        throw new IOException("Corrupted token stream");
+
+      return (int)value;
+    }
+
+  /**
+   * Reads the string table at the current position of the specified buffer.
+   * Entry 0 is always <tt>null</tt>; the strings are interned, as are those
+   * built by a tokenizer.
+   */
+  static String[] readStrings (ByteBuffer buffer) throws IOException
+    {
+      int count = readIndex(buffer);
+
+      if (count > buffer.remaining())
+        throw new IOException("Corrupted token stream");
+
+      String[] strings = new String[count+1];
+      char[] chars = new char[64];
+
+      for (int i = 1; i <= count; i++)
+        {
+          int length = readIndex(buffer);
+
+          if (length > buffer.remaining())
+            throw new IOException("Corrupted token stream");
+
+          if (length > chars.length)
+            chars = new char[Math.max(length,2*chars.length)];
+
+          for (int j = 0; j < length; j++)
+            chars[j] = (char)readVarint(buffer);
+
+          strings[i] = new String(chars,0,length).intern();
+        }
+
+      return strings;
+    }
+
+  /* ======================================================================= */
+
+  /**
+   * The state of an encoding in progress: the string table built so far,
+   * and the file, position, and source position of the end of the previous
+   * token.
+   */
+  private static final class Encoder
+    {
+      final Output out = new Output(BLOCK_SIZE);
+      final OutputStream stream;
+
+      final HashMap<String,Integer> indices = new HashMap<String,Integer>();
+      final ArrayList<String> strings = new ArrayList<String>();
+
+      long written = 0;
+      long count = 0;
+
+      String file = null;
+      int line = 0;
+      int col = 0;
+      long position = -1;
+
+      Encoder (OutputStream stream)
+        {
+          this.stream = stream;
+        }
+
+      /**
+       * Returns the index of the specified string in the string table,
+       * entering it if needed; index 0 stands for <tt>null</tt>.
+       */
+      final int index (String string)
+        {
+          if (string == null)
+            return 0;
+
+          Integer index = indices.get(string);
+
+          if (index == null)
+            {
+              strings.add(string);
+              indices.put(string,index = strings.size());
+            }
+
+          return index;
+        }
+
+      final void encode (AbstractStreamTokenizer t) throws IOException
+        {
+          if (!same(t.tokenStartFile,file))
+            {
+              out.writeByte(FILE);
+              out.writeVarint(index(file = t.tokenStartFile));
+            }
+
+          int endFlag = same(t.tokenEndFile,file) ? 0 : END_FILE;
+
+          switch (t.ttype)
+            {
+            case AbstractStreamTokenizer.TT_WORD:
+              out.writeByte(WORD|endFlag);
+              out.writeVarint(index(t.sval));
+              break;
+            case AbstractStreamTokenizer.TT_NUMBER:
+              long value = (long)t.nval;
+              if (Double.doubleToRawLongBits(value) == Double.doubleToRawLongBits(t.nval))
+                {
+                  out.writeByte((t.isInteger ? INTEGER : INTEGRAL)|endFlag);
+                  out.writeSignedVarint(value);
+                }
+              else
+                {
+                  out.writeByte((t.isInteger ? HUGE : REAL)|endFlag);
+                  out.writeLong(Double.doubleToRawLongBits(t.nval));
+                }
+              break;
+            default:
+              if (t.sval != null && t.ttype >= 0)
+                {
+                  out.writeByte(QUOTED|endFlag);
+                  out.writeVarint(t.ttype);
+                  out.writeVarint(t.rightQuote);
+                  out.writeVarint(index(t.sval));
+                }
+              else
+                {
+                  out.writeByte(OTHER|endFlag);
+                  out.writeSignedVarint(t.ttype);
+                }
+            }
+
+          writePosition(t.tokenStartLine,t.tokenStartCol);
+          writeSourcePosition(t.tokenStartPosition);
+
+          if (endFlag != 0)
+            out.writeVarint(index(t.tokenEndFile));
+
+          writePosition(t.tokenEndLine,t.tokenEndCol);
+          writeSourcePosition(t.tokenEndPosition);
+
+          count++;
+
+          if (out.size >= BLOCK_SIZE)
+            flush();
+        }
+
+      /**
+       * Writes the specified position relative to the previous one: the line
+       * difference, then the column difference if on the same line, or the
+       * column itself otherwise.
+       */
+      private final void writePosition (int newLine, int newCol)
+        {
+          out.writeSignedVarint(newLine-line);
+
+          if (newLine == line)
+            out.writeSignedVarint(newCol-col);
+          else
+            out.writeVarint(newCol);
+
+          line = newLine;
+          col = newCol;
+        }
+
+      /**
+       * Writes the specified source position relative to the previous one.
+       */
+      private final void writeSourcePosition (long newPosition)
+        {
+          out.writeSignedVarint(newPosition-position);
+          position = newPosition;
+        }
+
+      /**
+       * Writes the string table and the trailer, and returns the total
+       * number of bytes written.
+       */
+      final long finish () throws IOException
+        {
+          long tableOffset = written + out.size;
+
+          out.writeVarint(strings.size());
+          for (int i = 0; i < strings.size(); i++)
+            {
+              out.writeString(strings.get(i));
+              if (out.size >= BLOCK_SIZE)
+                flush();
+            }
+
+          out.writeLong(tableOffset);
+          out.writeLong(count);
+          flush();
+
+          return written;
+        }
+
+      private final void flush () throws IOException
+        {
+          stream.write(out.bytes,0,out.size);
+          written += out.size;
+          out.size = 0;
+        }
+
+      private static final boolean same (String s1, String s2)
+        {
+          return s1 == s2 || s1 != null && s1.equals(s2);
+        }
+    }
+
+  /**
+   * A growable byte array to encode into.
+   */
+  static final class Output
+    {
+      byte[] bytes;
+      int size = 0;
+
+      Output (int capacity)
+        {
+          bytes = new byte[Math.max(capacity,16)];
+        }
+
+      private final void ensure (int n)
+        {
+          if (size + n > bytes.length)
+            {
+              byte[] newBytes = new byte[Math.max(size+n,2*bytes.length)];
+              System.arraycopy(bytes,0,newBytes,0,size);
+              bytes = newBytes;
+            }
+        }
+
+      final void writeByte (int b)
+        {
+          ensure(1);
+          bytes[size++] = (byte)b;
+        }
+
+      final void writeVarint (long value)
+        {
+          ensure(10);
+          while ((value & ~0x7fL) != 0)
+            {
+              bytes[size++] = (byte)((value & 0x7f) | 0x80);
+              value >>>= 7;
+            }
+          bytes[size++] = (byte)value;
+        }
+
+      final void writeSignedVarint (long value)
+        {
+          writeVarint((value << 1) ^ (value >> 63));
+        }
+
+      final void writeInt (int value)
+        {
+          ensure(4);
+          for (int shift = 24; shift >= 0; shift -= 8)
+            bytes[size++] = (byte)(value >>> shift);
+        }
+
+      final void writeLong (long value)
+        {
+          ensure(8);
+          for (int shift = 56; shift >= 0; shift -= 8)
+            bytes[size++] = (byte)(value >>> shift);
+        }
+
+      final void writeString (String string)
+        {
+          writeVarint(string.length());
+          for (int i = 0; i < string.length(); i++)
+            writeVarint(string.charAt(i));
+        }
+    }
+}
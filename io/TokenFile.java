@@ -0,0 +1,91 @@
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+// PLEASE DO NOT EDIT WITHOUT THE EXPLICIT CONSENT OF THE AUTHOR! \\
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+
+package hlt.language.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.BufferedOutputStream;
+
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * This class defines static methods to save the complete token stream of a
+ * tokenizer to a pre-tokenized file, and to replay such a file. The file
+ * holds the versioned binary form defined by <tt>TokenCodec</tt>, and is
+ * read by mapping it into memory, so that replaying it costs little more
+ * than walking through its bytes. Thus, large inputs may be tokenized once
+ * and for all, and their tokens replayed by any number of consumers.
+ * Inclusion boundaries are preserved: a replayed token's location gives
+ * the file it was read from.
+ *
+ * @see         TokenCodec
+ * @see         ReplayStreamTokenizer
+ */
+
+public final class TokenFile
+{
+  private TokenFile ()
+    {
+    }
+
+  /**
+   * Reads all the tokens of the specified tokenizer up to and including
+   * <tt>TT_EOF</tt> and saves them into the specified file, which is
+   * replaced only once it is complete. Returns the size of the file.
+   *
+   * @throws    IOException (if an I/O error occurs)
+   */
+  public static long write (AbstractStreamTokenizer tokenizer, File file) throws IOException
+    {
+      Path path = file.toPath().toAbsolutePath();
+      Path temp = Files.createTempFile(path.getParent(),path.getFileName().toString(),".tmp");
+
+      try
+        {
+          long size;
+
+          try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp)))
+            {
+              size = TokenCodec.encode(tokenizer,out);
+            }
+
+          Files.move(temp,path,StandardCopyOption.REPLACE_EXISTING);
+          return size;
+        }
+      finally
+        {
+          Files.deleteIfExists(temp);
+        }
+    }
+
+  /**
+   * Returns a tokenizer replaying the tokens saved in the specified file.
+   * The file is mapped into memory; it need not (and should not) be modified
+   * while being replayed.
+   *
+   * @throws    IOException (if the file cannot be read, is too large to be
+   *            mapped, or is not a valid pre-tokenized file)
+   */
+  public static ReplayStreamTokenizer open (File file) throws IOException
+    {
+      try (FileChannel channel = FileChannel.open(file.toPath(),StandardOpenOption.READ))
+        {
+          long size = channel.size();
+
+          if (size > Integer.MAX_VALUE)
+            throw new IOException("Pre-tokenized file too large to map: "+file);
+
+          MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,0,size);
+          return new ReplayStreamTokenizer(buffer);
+        }
+    }
+}
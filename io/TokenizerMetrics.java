@@ -0,0 +1,290 @@
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+// PLEASE DO NOT EDIT WITHOUT THE EXPLICIT CONSENT OF THE AUTHOR! \\
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+
+package hlt.language.io;
+
+import java.io.IOException;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * This class gathers counters and timings describing what tokenizers and
+ * include readers do. A <tt>TokenizerMetrics</tt> object is attached to a
+ * tokenizer with <tt>AbstractStreamTokenizer.setMetrics</tt> and to an
+ * include reader with <tt>IncludeReader.setMetrics</tt>; the same object
+ * may be shared by any number of them, in any number of threads, since
+ * all its counters are <tt>LongAdder</tt>s.
+ * <p>
+ * Instrumentation is opt-in: unless the JVM is started with
+ * <tt>-Dhlt.language.io.metrics=true</tt>, the constant <tt>ENABLED</tt> is
+ * <tt>false</tt> and all the instrumentation code is compiled away, metrics
+ * objects being then ignored.
+ * <p>
+ * The following are recorded:
+ * <ul>
+ * <li> the number of characters read by tokenizers, and how many of them
+ *      were skipped in comments;
+ * <li> the number of tokens of each kind (see <tt>WORDS</tt>, ...), which
+ *      includes the number of numbers parsed;
+ * <li> the number of words found in, or entered into, the symbol tables of
+ *      the tokenizers;
+ * <li> the number of times a lookahead buffer was refilled;
+ * <li> the number of files opened by include readers and the maximum
+ *      inclusion depth reached;
+ * <li> a histogram of the time taken to scan a token: bucket <tt>i</tt>
+ *      counts the tokens scanned in <tt>[2<sup>i</sup>,2<sup>i+1</sup>)</tt>
+ *      nanoseconds.
+ * </ul>
+ */
+
+public class TokenizerMetrics
+{
+  /**
+   * This is <tt>true</tt> iff instrumentation is on for this JVM.
+   */
+  public static final boolean ENABLED = Boolean.getBoolean("hlt.language.io.metrics");
+
+  /**
+   * The kinds of tokens counted separately:
+   */
+  public static final int WORDS    = 0;
+  public static final int NUMBERS  = 1;
+  public static final int QUOTES   = 2;
+  public static final int EOLS     = 3;
+  public static final int SPECIALS = 4;
+  public static final int EOFS     = 5;
+  public static final int OTHERS   = 6;
+
+  private static final String[] KIND_NAMES
+    = { "words", "numbers", "quotes", "eols", "specials", "eofs", "others" };
+
+  private final LongAdder _chars = new LongAdder();
+  private final LongAdder _commentChars = new LongAdder();
+  private final LongAdder[] _tokens = newAdders(KIND_NAMES.length);
+  private final LongAdder _symbolHits = new LongAdder();
+  private final LongAdder _symbolMisses = new LongAdder();
+  private final LongAdder _lookaheadRefills = new LongAdder();
+  private final LongAdder _filesOpened = new LongAdder();
+  private final LongAccumulator _maxIncludeDepth = new LongAccumulator(Math::max,0);
+  private final LongAdder[] _latencies = newAdders(64);
+
+  /* ======================================================================= */
+
+  /**
+   * Returns the number of characters read by tokenizers.
+   */
+  public final long charsRead ()
+    {
+      return _chars.sum();
+    }
+
+  /**
+   * Returns the number of characters skipped in comments by tokenizers.
+   */
+  public final long commentChars ()
+    {
+      return _commentChars.sum();
+    }
+
+  /**
+   * Returns the number of tokens of the specified kind (<tt>WORDS</tt>, ...).
+   */
+  public final long tokens (int kind)
+    {
+      return _tokens[kind].sum();
+    }
+
+  /**
+   * Returns the total number of tokens.
+   */
+  public final long tokens ()
+    {
+      long sum = 0;
+      for (int kind = 0; kind < _tokens.length; kind++)
+        sum += _tokens[kind].sum();
+      return sum;
+    }
+
+  /**
+   * Returns the number of numbers parsed.
+   */
+  public final long numbersParsed ()
+    {
+      return tokens(NUMBERS);
+    }
+
+  /**
+   * Returns the number of words found in the symbol table of a tokenizer.
+   */
+  public final long symbolHits ()
+    {
+      return _symbolHits.sum();
+    }
+
+  /**
+   * Returns the number of words not found in the symbol table of a tokenizer.
+   */
+  public final long symbolMisses ()
+    {
+      return _symbolMisses.sum();
+    }
+
+  /**
+   * Returns the number of times a lookahead buffer was refilled.
+   */
+  public final long lookaheadRefills ()
+    {
+      return _lookaheadRefills.sum();
+    }
+
+  /**
+   * Returns the number of files opened by include readers.
+   */
+  public final long filesOpened ()
+    {
+      return _filesOpened.sum();
+    }
+
+  /**
+   * Returns the maximum inclusion depth reached by include readers.
+   */
+  public final long maxIncludeDepth ()
+    {
+      return _maxIncludeDepth.get();
+    }
+
+  /**
+   * Returns the token scanning time histogram: element <tt>i</tt> is the
+   * number of tokens scanned in <tt>[2<sup>i</sup>,2<sup>i+1</sup>)</tt>
+   * nanoseconds.
+   */
+  public final long[] latencyHistogram ()
+    {
+      long[] histogram = new long[_latencies.length];
+      for (int i = 0; i < histogram.length; i++)
+        histogram[i] = _latencies[i].sum();
+      return histogram;
+    }
+
+  /**
+   * Resets all the metrics to 0.
+   */
+  public final void reset ()
+    {
+      _chars.reset();
+      _commentChars.reset();
+      _symbolHits.reset();
+      _symbolMisses.reset();
+      _lookaheadRefills.reset();
+      _filesOpened.reset();
+      _maxIncludeDepth.reset();
+      for (int i = 0; i < _tokens.length; i++) _tokens[i].reset();
+      for (int i = 0; i < _latencies.length; i++) _latencies[i].reset();
+    }
+
+  /**
+   * Returns a string form of the current values of the metrics.
+   */
+  public String toString ()
+    {
+      StringBuilder s = new StringBuilder("<TokenizerMetrics:");
+
+      s.append(" chars=").append(charsRead());
+      s.append(", commentChars=").append(commentChars());
+      for (int kind = 0; kind < _tokens.length; kind++)
+        s.append(", ").append(KIND_NAMES[kind]).append('=').append(tokens(kind));
+      s.append(", symbolHits=").append(symbolHits());
+      s.append(", symbolMisses=").append(symbolMisses());
+      s.append(", lookaheadRefills=").append(lookaheadRefills());
+      s.append(", filesOpened=").append(filesOpened());
+      s.append(", maxIncludeDepth=").append(maxIncludeDepth());
+
+      s.append(", latencies(ns)={");
+      long[] histogram = latencyHistogram();
+      boolean first = true;
+      for (int i = 0; i < histogram.length; i++)
+        if (histogram[i] != 0)
+          {
+            if (!first) s.append(", ");
+            s.append(1L<<i).append('+').append('=').append(histogram[i]);
+            first = false;
+          }
+
+      return s.append("}>").toString();
+    }
+
+  /* ======================================================================= */
+
+  /**
+   * Scans a token with the specified tokenizer, timing it and recording
+   * its kind along with the counts accumulated by the tokenizer meanwhile.
+   */
+  final int scan (AbstractStreamTokenizer tokenizer) throws IOException
+    {
+      long start = System.nanoTime();
+      int type = tokenizer.scanToken();
+      long time = System.nanoTime() - start;
+
+      _latencies[63 - Long.numberOfLeadingZeros(Math.max(time,1))].increment();
+      _tokens[kind(tokenizer)].increment();
+
+      tokenizer.flushCounts(this);
+
+      return type;
+    }
+
+  /**
+   * Adds the specified counts to the metrics.
+   */
+  final void add (long chars, long commentChars, long symbolHits, long symbolMisses)
+    {
+      if (chars != 0) _chars.add(chars);
+      if (commentChars != 0) _commentChars.add(commentChars);
+      if (symbolHits != 0) _symbolHits.add(symbolHits);
+      if (symbolMisses != 0) _symbolMisses.add(symbolMisses);
+    }
+
+  final void lookaheadRefill ()
+    {
+      _lookaheadRefills.increment();
+    }
+
+  final void fileOpened (int depth)
+    {
+      _filesOpened.increment();
+      _maxIncludeDepth.accumulate(depth);
+    }
+
+  final void included (int depth)
+    {
+      _maxIncludeDepth.accumulate(depth);
+    }
+
+  private static int kind (AbstractStreamTokenizer tokenizer)
+    {
+      switch (tokenizer.ttype)
+        {
+        case AbstractStreamTokenizer.TT_WORD:
+          return WORDS;
+        case AbstractStreamTokenizer.TT_NUMBER:
+          return NUMBERS;
+        case AbstractStreamTokenizer.TT_EOL:
+          return EOLS;
+        case AbstractStreamTokenizer.TT_SPECIAL:
+          return SPECIALS;
+        case AbstractStreamTokenizer.TT_EOF:
+          return EOFS;
+        }
+
+      return tokenizer.sval != null ? QUOTES : OTHERS;
+    }
+
+  private static LongAdder[] newAdders (int n)
+    {
+      LongAdder[] adders = new LongAdder[n];
+      for (int i = 0; i < n; i++) adders[i] = new LongAdder();
+      return adders;
+    }
+}
@@ -0,0 +1,210 @@
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+// PLEASE DO NOT EDIT WITHOUT THE EXPLICIT CONSENT OF THE AUTHOR! \\
+//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\//\\
+
+package hlt.language.io;
+
+import java.io.Reader;
+
+import java.util.HashMap;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This is a thread-safe registry of sources held in memory (such as
+ * generated templates or macros), each registered under a name by which it
+ * may be included as if it were a file (see
+ * <tt>IncludeReader.setVirtualSources</tt>). An included virtual source is
+ * known by its name, as reported by <tt>getFile()</tt>, and is subject to
+ * circular inclusion detection and to the include once policy like a file.
+ * A registered name is looked up before the include path, and so hides any
+ * file by the same name.
+ * <p>
+ * The contents of a source are kept as an immutable <tt>String</tt> (a
+ * <tt>CharSequence</tt> of another kind is copied once when registered),
+ * and equal contents registered under different names are kept only once:
+ * registering contents equal to some already registered, as found by their
+ * hash code, shares the same string. A source is read through a
+ * <tt>CharSequenceReader</tt> on its contents, which are not copied, so that
+ * any number of <tt>IncludeReader</tt>s in any number of threads may read it
+ * at once. Looking a name up takes no lock.
+ *
+ * @see         CharSequenceReader
+ * @see         IncludeReader
+ */
+
+public final class VirtualSourceRegistry
+{
+  private static VirtualSourceRegistry _shared;
+
+  /**
+   * Returns the process-wide registry, creating it on first use.
+   */
+  public static synchronized VirtualSourceRegistry shared ()
+    {
+      if (_shared == null)
+        _shared = new VirtualSourceRegistry();
+
+      return _shared;
+    }
+
+  /**
+   * Distinct contents, along with the number of names they are registered
+   * under.
+   */
+  private static final class Content
+    {
+      final String text;
+      int names = 0;
+
+      Content (String text)
+        {
+          this.text = text;
+        }
+    }
+
+  /**
+   * The contents registered under each name.
+   */
+  private final ConcurrentHashMap<String,Content> _sources = new ConcurrentHashMap<String,Content>();
+
+  /**
+   * The distinct contents registered, by text (guarded by <tt>this</tt>).
+   */
+  private final HashMap<String,Content> _contents = new HashMap<String,Content>();
+
+  /**
+   * Registers the specified contents under the specified name, replacing
+   * any registered under it before, and returns the string holding them,
+   * which is shared with any other name under which equal contents are
+   * registered.
+   */
+  public final synchronized String register (String name, CharSequence contents)
+    {
+      String text = contents.toString();
+      Content content = _contents.get(text);
+
+      if (content == null)
+        _contents.put(text,content = new Content(text));
+
+      content.names++;
+      release(_sources.put(name,content));
+
+      return content.text;
+    }
+
+  /**
+   * Removes the source registered under the specified name, and returns
+   * whether there was one. Readers already reading it are not affected.
+   */
+  public final synchronized boolean unregister (String name)
+    {
+      Content content = _sources.remove(name);
+      release(content);
+      return content != null;
+    }
+
+  /**
+   * Removes all the registered sources.
+   */
+  public final synchronized void clear ()
+    {
+      _sources.clear();
+      _contents.clear();
+    }
+
+  /**
+   * Drops the specified contents, if not <tt>null</tt>, from one of the
+   * names they are registered under, and forgets them when none is left.
+   */
+  private final void release (Content content)
+    {
+      if (content != null && --content.names == 0)
+        _contents.remove(content.text);
+    }
+
+  /**
+   * Returns <tt>true</tt> iff a source is registered under the specified
+   * name.
+   */
+  public final boolean contains (String name)
+    {
+      return _sources.containsKey(name);
+    }
+
+  /**
+   * Returns the contents registered under the specified name, or
+   * <tt>null</tt> if there are none.
+   */
+  public final String contents (String name)
+    {
+      Content content = _sources.get(name);
+      return content == null ? null : content.text;
+    }
+
+  /**
+   * Returns a reader of the contents registered under the specified name,
+   * or <tt>null</tt> if there are none.
+   */
+  public final Reader reader (String name)
+    {
+      Content content = _sources.get(name);
+      return content == null ? null : new CharSequenceReader(content.text);
+    }
+
+  /**
+   * Returns the number of names registered.
+   */
+  public final int size ()
+    {
+      return _sources.size();
+    }
+
+  /**
+   * Returns the number of distinct contents registered.
+   */
+  public final synchronized int contentCount ()
+    {
+      return _contents.size();
+    }
+
+  /**
+   * Returns the identity of the source registered under the specified name,
+   * for the purpose of circular inclusion detection and the include once
+   * policy: an object equal only to those returned for the same name by
+   * this registry, and to no file identity.
+   */
+  final Object identity (String name)
+    {
+      return new Identity(this,name);
+    }
+
+  private static final class Identity
+    {
+      final VirtualSourceRegistry registry;
+      final String name;
+
+      Identity (VirtualSourceRegistry registry, String name)
+        {
+          this.registry = registry;
+          this.name = name;
+        }
+
+      public boolean equals (Object other)
+        {
+          return other instanceof Identity
+              && ((Identity)other).registry == registry
+              && ((Identity)other).name.equals(name);
+        }
+
+      public int hashCode ()
+        {
+          return 31*System.identityHashCode(registry) + name.hashCode();
+        }
+    }
+
+  public final String toString ()
+    {
+      return "<VirtualSourceRegistry: " + size() + " names, " + contentCount() + " contents>";
+    }
+}
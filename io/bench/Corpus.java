@@ -0,0 +1,223 @@
+import java.io.File;
+import java.io.Writer;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import java.util.Random;
+
+/**
+ * This generates the synthetic inputs used by the benchmarks. Each kind of
+ * corpus stresses one part of the tokenizers:
+ * <ul>
+ * <li> <tt>identifiers</tt>: words of various lengths and a few operators;
+ * <li> <tt>numbers</tt>: integer, floating point, hexadecimal, and octal literals;
+ * <li> <tt>comments</tt>: C and C++ style comments with little code in between;
+ * <li> <tt>strings</tt>: quoted strings, some with escape sequences;
+ * <li> <tt>includes</tt>: a chain of files, each including the next one
+ *      through an <tt>include "<i>file</i>"</tt> directive.
+ * </ul>
+ * The corpus is written to a temporary directory so that it may be read
+ * from files as well as from memory. The same seed is always used, so
+ * that results of different runs are comparable.
+ */
+
+public class Corpus
+{
+  /**
+   * The depth of the chain of inclusions of an <tt>includes</tt> corpus.
+   */
+  public static final int INCLUDE_DEPTH = 32;
+
+  /**
+   * The temporary directory holding the files of this corpus.
+   */
+  public final File directory;
+
+  /**
+   * The outermost file of this corpus.
+   */
+  public final File root;
+
+  /**
+   * The text of this corpus with all inclusions expanded in place and the
+   * include directives removed, as a baseline reading no files would see it.
+   */
+  public final String text;
+
+  /**
+   * The total number of characters read when tokenizing this corpus.
+   */
+  public final long length;
+
+  public Corpus (String kind, int size) throws IOException
+    {
+      directory = File.createTempFile("corpus",".dir");
+      directory.delete();
+      directory.mkdir();
+
+      Random random = new Random(20121019L);
+
+      if (!kind.equals("includes"))
+        {
+          text = generate(kind,size,random);
+          root = write("root.txt",text);
+          length = text.length();
+          return;
+        }
+
+      StringBuilder flat = new StringBuilder(size);
+      int part = size / (2*INCLUDE_DEPTH);
+      long total = 0;
+      File file = null;
+
+      // write the files from the innermost out, each including the previous one:
+      String[] before = new String[INCLUDE_DEPTH];
+      String[] after = new String[INCLUDE_DEPTH];
+
+      for (int depth = 0; depth < INCLUDE_DEPTH; depth++)
+        {
+          before[depth] = generate("identifiers",part,random);
+          after[depth] = generate("identifiers",part,random);
+        }
+
+      for (int depth = INCLUDE_DEPTH-1; depth >= 0; depth--)
+        {
+          String contents = before[depth]
+                          + (file == null ? "" : "\ninclude \"" + file.getName() + "\"\n")
+                          + after[depth];
+          file = write("file"+depth+".txt",contents);
+          total += contents.length();
+        }
+
+      for (int depth = 0; depth < INCLUDE_DEPTH; depth++)
+        flat.append(before[depth]).append('\n');
+      for (int depth = INCLUDE_DEPTH-1; depth >= 0; depth--)
+        flat.append('\n').append(after[depth]);
+
+      root = file;
+      text = flat.toString();
+      length = total;
+    }
+
+  /**
+   * Deletes the files of this corpus.
+   */
+  public void delete ()
+    {
+      File[] files = directory.listFiles();
+
+      if (files != null)
+        for (int i = 0; i < files.length; i++)
+          files[i].delete();
+
+      directory.delete();
+    }
+
+  private File write (String name, String contents) throws IOException
+    {
+      File file = new File(directory,name);
+      Writer writer = new FileWriter(file);
+      try
+        {
+          writer.write(contents);
+        }
+      finally
+        {
+          writer.close();
+        }
+      return file;
+    }
+
+  private static final String[] OPERATORS = { "+", "-", "*", "=", "(", ")", ";", ",", "{", "}" };
+
+  private static String generate (String kind, int size, Random random)
+    {
+      StringBuilder text = new StringBuilder(size+256);
+      int column = 0;
+
+      while (text.length() < size)
+        {
+          int start = text.length();
+
+          if (kind.equals("identifiers"))
+            {
+              word(text,1+random.nextInt(12),random);
+              text.append(' ');
+              if (random.nextInt(4) == 0)
+                text.append(OPERATORS[random.nextInt(OPERATORS.length)]).append(' ');
+            }
+          else if (kind.equals("numbers"))
+            {
+              switch (random.nextInt(4))
+                {
+                case 0:
+                  text.append(random.nextInt(1000000));
+                  break;
+                case 1:
+                  text.append(random.nextDouble()*1000).append(random.nextBoolean() ? "e-3" : "");
+                  break;
+                case 2:
+                  text.append("0x").append(Integer.toHexString(random.nextInt()));
+                  break;
+                default:
+                  text.append('0').append(Integer.toOctalString(random.nextInt(4096)));
+                }
+              text.append(' ');
+            }
+          else if (kind.equals("comments"))
+            {
+              if (random.nextBoolean())
+                {
+                  text.append("// ");
+                  sentence(text,8+random.nextInt(8),random);
+                  text.append('\n');
+                  column = 0;
+                  continue;
+                }
+              text.append("/* ");
+              sentence(text,10+random.nextInt(30),random);
+              text.append(" */ ");
+              word(text,1+random.nextInt(8),random);
+              text.append(' ');
+            }
+          else if (kind.equals("strings"))
+            {
+              text.append('"');
+              sentence(text,1+random.nextInt(12),random);
+              if (random.nextInt(3) == 0)
+                text.append("\\t\\n\\\"\\u00e9");
+              text.append("\" ");
+            }
+          else
+            throw new IllegalArgumentException("Unknown corpus: "+kind);
+
+          column += text.length() - start;
+          if (column > 72)
+            {
+              text.append('\n');
+              column = 0;
+            }
+        }
+
+      return text.toString();
+    }
+
+  private static void word (StringBuilder text, int length, Random random)
+    {
+      text.append((char)('a'+random.nextInt(26)));
+      for (int i = 1; i < length; i++)
+        {
+          int c = random.nextInt(38);
+          text.append(c < 26 ? (char)('a'+c) : c < 36 ? (char)('0'+c-26) : '_');
+        }
+    }
+
+  private static void sentence (StringBuilder text, int words, Random random)
+    {
+      for (int i = 0; i < words; i++)
+        {
+          if (i > 0) text.append(' ');
+          word(text,1+random.nextInt(9),random);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+import hlt.language.io.IO;
+import hlt.language.io.LAReader;
+import hlt.language.io.IncludeReader;
+
+import java.io.File;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.BufferedReader;
+import java.io.IOException;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * This measures the character throughput of <tt>LAReader</tt> and
+ * <tt>IncludeReader</tt>, one character at a time, in blocks, and, for
+ * <tt>LAReader</tt>, with a short lookahead at every character as done by
+ * <tt>LAStreamTokenizer</tt> when looking for comments (both building the
+ * lookahead string and matching the buffer in place). A
+ * <tt>BufferedReader</tt> serves as a baseline. The <tt>chars</tt> counter
+ * gives the number of characters read per second. Run with <tt>-prof gc</tt>
+ * to get the allocation rate per operation.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class ReaderBenchmark
+{
+  @Param({"identifiers", "comments"})
+  public String corpus;
+
+  @Param({"1048576"})
+  public int size;
+
+  private Corpus input;
+  private Corpus includes;
+
+  private final char[] block = new char[8192];
+
+  @Setup
+  public void setup () throws IOException
+    {
+      input = new Corpus(corpus,size);
+      includes = new Corpus("includes",size);
+    }
+
+  @TearDown
+  public void tearDown ()
+    {
+      input.delete();
+      includes.delete();
+    }
+
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Counters
+    {
+      public long chars;
+
+      @Setup(Level.Iteration)
+      public void reset ()
+        {
+          chars = 0;
+        }
+    }
+
+  @Benchmark
+  public long bufferedReader (Counters counters) throws IOException
+    {
+      return readChars(new BufferedReader(new StringReader(input.text)),counters);
+    }
+
+  @Benchmark
+  public long laReader (Counters counters) throws IOException
+    {
+      return readChars(new LAReader(new StringReader(input.text)),counters);
+    }
+
+  @Benchmark
+  public long laReaderBlocks (Counters counters) throws IOException
+    {
+      return readBlocks(new LAReader(new StringReader(input.text)),counters);
+    }
+
+  @Benchmark
+  public long laReaderLookahead (Counters counters) throws IOException
+    {
+      LAReader reader = new LAReader(new StringReader(input.text));
+      long chars = 0;
+      long matches = 0;
+
+      while (reader.read() != IO.EOF)
+        {
+          chars++;
+          if (reader.lookahead(2).equals("/*"))
+            matches++;
+        }
+
+      counters.chars += chars;
+      return chars + matches;
+    }
+
+  @Benchmark
+  public long laReaderLookaheadMatches (Counters counters) throws IOException
+    {
+      LAReader reader = new LAReader(new StringReader(input.text));
+      long chars = 0;
+      long matches = 0;
+
+      while (reader.read() != IO.EOF)
+        {
+          chars++;
+          if (reader.lookaheadMatches("/*"))
+            matches++;
+        }
+
+      counters.chars += chars;
+      return chars + matches;
+    }
+
+  @Benchmark
+  public long includeReader (Counters counters) throws IOException
+    {
+      return readChars(new IncludeReader(new StringReader(input.text)),counters);
+    }
+
+  @Benchmark
+  public long includeReaderBlocks (Counters counters) throws IOException
+    {
+      return readBlocks(new IncludeReader(new StringReader(input.text)),counters);
+    }
+
+  /**
+   * Reads the chain of files of an <tt>includes</tt> corpus nested all at
+   * once, the innermost first, so that each file is opened, read, and popped.
+   */
+  @Benchmark
+  public long includeReaderNested (Counters counters) throws IOException
+    {
+      IncludeReader reader = new IncludeReader(includes.root.getPath());
+
+      for (int depth = 1; depth < Corpus.INCLUDE_DEPTH; depth++)
+        reader.include(new File(includes.directory,"file"+depth+".txt").getPath());
+
+      return readChars(reader,counters);
+    }
+
+  private long readChars (Reader reader, Counters counters) throws IOException
+    {
+      long chars = 0;
+
+      while (reader.read() != IO.EOF)
+        chars++;
+
+      reader.close();
+      counters.chars += chars;
+      return chars;
+    }
+
+  private long readBlocks (Reader reader, Counters counters) throws IOException
+    {
+      long chars = 0;
+      int count;
+
+      while ((count = reader.read(block,0,block.length)) > 0)
+        chars += count;
+
+      reader.close();
+      counters.chars += chars;
+      return chars;
+    }
+}
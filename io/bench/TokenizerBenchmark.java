@@ -0,0 +1,150 @@
+import hlt.language.io.IncludeReader;
+import hlt.language.io.LAStreamTokenizer;
+import hlt.language.io.AbstractStreamTokenizer;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.IOException;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * This measures the throughput of <tt>hlt.language.io.StreamTokenizer</tt>
+ * and <tt>hlt.language.io.LAStreamTokenizer</tt> on each kind of
+ * <tt>Corpus</tt>, with <tt>java.io.StreamTokenizer</tt> as a baseline.
+ * Besides the number of complete tokenizations per second, the
+ * <tt>tokens</tt> and <tt>chars</tt> counters give the number of tokens
+ * and characters processed per second (characters are bytes in these
+ * ASCII corpora). Run with <tt>-prof gc</tt> to get the allocation rate
+ * per operation.
+ * <p>
+ * For the <tt>includes</tt> corpus, <tt>StreamTokenizer</tt> and
+ * <tt>LAStreamTokenizer</tt> read the chain of files through an
+ * <tt>IncludeReader</tt> and follow the include directives, while
+ * <tt>java.io.StreamTokenizer</tt> reads the expanded text.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class TokenizerBenchmark
+{
+  @Param({"identifiers", "numbers", "comments", "strings", "includes"})
+  public String corpus;
+
+  @Param({"1048576"})
+  public int size;
+
+  private Corpus input;
+
+  @Setup
+  public void setup () throws IOException
+    {
+      input = new Corpus(corpus,size);
+    }
+
+  @TearDown
+  public void tearDown ()
+    {
+      input.delete();
+    }
+
+  /**
+   * The counters reported as rates alongside the benchmark scores.
+   */
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Counters
+    {
+      public long tokens;
+      public long chars;
+
+      @Setup(Level.Iteration)
+      public void reset ()
+        {
+          tokens = chars = 0;
+        }
+    }
+
+  @Benchmark
+  public long streamTokenizer (Counters counters) throws IOException
+    {
+      Reader reader = reader();
+      return tokenize(new hlt.language.io.StreamTokenizer(reader),reader,counters);
+    }
+
+  @Benchmark
+  public long laStreamTokenizer (Counters counters) throws IOException
+    {
+      Reader reader = reader();
+      return tokenize(new LAStreamTokenizer(reader),reader,counters);
+    }
+
+  @Benchmark
+  public long javaStreamTokenizer (Counters counters) throws IOException
+    {
+      java.io.StreamTokenizer tokenizer
+        = new java.io.StreamTokenizer(new StringReader(input.text));
+
+      tokenizer.slashSlashComments(true);
+      tokenizer.slashStarComments(true);
+      tokenizer.wordChars('_','_');
+
+      long tokens = 0;
+      while (tokenizer.nextToken() != java.io.StreamTokenizer.TT_EOF)
+        tokens++;
+
+      counters.tokens += tokens;
+      counters.chars += input.text.length();
+      return tokens;
+    }
+
+  /**
+   * Returns a fresh reader over the corpus: an <tt>IncludeReader</tt> on the
+   * outermost file for the <tt>includes</tt> corpus, or a reader of the
+   * text in memory otherwise.
+   */
+  private Reader reader () throws IOException
+    {
+      if (corpus.equals("includes"))
+        return new IncludeReader(input.root.getPath());
+
+      return new StringReader(input.text);
+    }
+
+  /**
+   * Reads all the tokens, following include directives if the reader is
+   * an <tt>IncludeReader</tt>, and returns their number.
+   */
+  private long tokenize (AbstractStreamTokenizer tokenizer, Reader reader, Counters counters)
+    throws IOException
+    {
+      boolean including = false;
+      long tokens = 0;
+
+      while (tokenizer.nextToken() != AbstractStreamTokenizer.TT_EOF)
+        {
+          tokens++;
+
+          if (reader instanceof IncludeReader)
+            {
+              if (including && tokenizer.ttype == '"')
+                ((IncludeReader)reader).include(input.directory.getPath()+"/"+tokenizer.sval);
+
+              including = tokenizer.ttype == AbstractStreamTokenizer.TT_WORD
+                       && tokenizer.sval == "include";
+            }
+        }
+
+      reader.close();
+
+      counters.tokens += tokens;
+      counters.chars += reader instanceof IncludeReader ? input.length : input.text.length();
+      return tokens;
+    }
+}
@@ -0,0 +1,144 @@
+import hlt.language.io.IncludeReader;
+import hlt.language.io.IncludeGraphTokenizer;
+import hlt.language.io.StreamTokenizer;
+import hlt.language.io.LAStreamTokenizer;
+import hlt.language.io.AbstractStreamTokenizer;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Tokenizes a file including others with an <tt>IncludeGraphTokenizer</tt>,
+ * making <tt>StreamTokenizer</tt>s and <tt>LAStreamTokenizer</tt>s, in
+ * seamless and non-seamless modes, and checks that it delivers the same
+ * tokens, at the same locations, as a <tt>StreamTokenizer</tt> reading an
+ * <tt>IncludeReader</tt> whose client includes the files in sequence.
+ */
+public class IncludeGraphTest
+{
+  /**
+   * Recognizes <tt>include "file"</tt>.
+   */
+  static class Include implements IncludeGraphTokenizer.Directive
+    {
+      boolean including = false;
+
+      public String include (AbstractStreamTokenizer tokenizer)
+        {
+          String name = including && tokenizer.ttype == '"' ? tokenizer.sval : null;
+          including = tokenizer.ttype == AbstractStreamTokenizer.TT_WORD && "include".equals(tokenizer.sval);
+          return name;
+        }
+    }
+
+  public static void main (String[] args) throws IOException
+    {
+      File dir = new File(System.getProperty("java.io.tmpdir"),"IncludeGraphTest");
+      dir.mkdirs();
+
+      write(new File(dir,"main.txt"),
+            "first line\ninclude \"a.txt\" after a\n  third 'quoted' 12\n"+
+            "include \"b.txt\"\ninclude \"a.txt\"\nlast line\n");
+      write(new File(dir,"a.txt"),
+            "in a\n  include \"b.txt\" then more\n");
+      write(new File(dir,"b.txt"),
+            "in b 3.5\n");
+
+      String main = new File(dir,"main.txt").getPath();
+      boolean ok = true;
+
+      for (int mode = 0; mode < 2; mode++)
+        {
+          boolean seamless = mode == 0;
+          String sequential = sequential(main,seamless);
+
+          System.out.println((seamless ? "seamless" : "non-seamless")+":");
+          System.out.print(sequential);
+
+          for (int lookahead = 0; lookahead < 2; lookahead++)
+            {
+              String spliced = spliced(main,seamless,lookahead == 1);
+
+              if (!sequential.equals(spliced))
+                {
+                  ok = false;
+                  System.out.println("*** spliced with "+(lookahead == 1 ? "LAStreamTokenizer" : "StreamTokenizer")+" differs:");
+                  System.out.print(spliced);
+                }
+            }
+        }
+
+      System.out.println("Spliced and sequential tokens agree: "+ok);
+    }
+
+  /**
+   * Returns the tokens of the specified file as read through an
+   * <tt>IncludeReader</tt> including files in sequence.
+   */
+  static String sequential (String file, boolean seamless) throws IOException
+    {
+      IncludeReader reader = new IncludeReader(file);
+      reader.setSeamless(seamless);
+
+      StreamTokenizer tokenizer = new StreamTokenizer(reader);
+      Include directive = new Include();
+      StringBuilder out = new StringBuilder();
+
+      while (tokenizer.nextToken() != AbstractStreamTokenizer.TT_EOF)
+        {
+          append(out,tokenizer);
+
+          String name = directive.include(tokenizer);
+          if (name != null)
+            reader.include(new File(new File(file).getParent(),name).getPath());
+        }
+
+      return out.toString();
+    }
+
+  /**
+   * Returns the tokens of the specified file as spliced by an
+   * <tt>IncludeGraphTokenizer</tt>.
+   */
+  static String spliced (String file, boolean seamless, final boolean lookahead) throws IOException
+    {
+      final String dir = new File(file).getParent();
+
+      IncludeGraphTokenizer tokenizer = new IncludeGraphTokenizer
+        (file,
+         reader -> lookahead ? new LAStreamTokenizer(reader) : new StreamTokenizer(reader),
+         () -> new Include()
+               {
+                 public String include (AbstractStreamTokenizer tokenizer)
+                   {
+                     String name = super.include(tokenizer);
+                     return name == null ? null : new File(dir,name).getPath();
+                   }
+               },
+         null,seamless);
+      StringBuilder out = new StringBuilder();
+
+      while (tokenizer.nextToken() != AbstractStreamTokenizer.TT_EOF)
+        append(out,tokenizer);
+
+      return out.toString();
+    }
+
+  static void append (StringBuilder out, AbstractStreamTokenizer tokenizer)
+    {
+      String start = tokenizer.tokenStart().toString();
+      String end = tokenizer.tokenEnd().toString();
+
+      out.append("  ").append(tokenizer.ttype).append(' ').append(tokenizer.sval)
+         .append(' ').append(start.substring(start.lastIndexOf(File.separatorChar)+1))
+         .append('-').append(end.substring(end.lastIndexOf(File.separatorChar)+1)).append('\n');
+    }
+
+  static void write (File file, String contents) throws IOException
+    {
+      FileWriter writer = new FileWriter(file);
+      writer.write(contents);
+      writer.close();
+    }
+}
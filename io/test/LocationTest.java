@@ -0,0 +1,101 @@
+import hlt.language.io.IncludeReader;
+import hlt.language.io.SourceMap;
+import hlt.language.io.StreamTokenizer;
+import hlt.language.io.LAStreamTokenizer;
+import hlt.language.io.AbstractStreamTokenizer;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Tokenizes a file including another one with a <tt>StreamTokenizer</tt>
+ * and with an <tt>LAStreamTokenizer</tt>, in seamless and non-seamless
+ * modes, and checks that both report the same locations and source
+ * positions for every token.
+ */
+public class LocationTest
+{
+  public static void main (String[] args) throws IOException
+    {
+      File dir = new File(System.getProperty("java.io.tmpdir"),"LocationTest");
+      dir.mkdirs();
+
+      write(new File(dir,"main.txt"),
+            "first line\n  second 'quoted' line\ninclude \"inc.txt\" after\n"+
+            "fourth 12 3.5\n\n   sixth line\n");
+      write(new File(dir,"inc.txt"),
+            "included one\n  included two\ninclude \"inner.txt\"\nlast\n");
+      write(new File(dir,"inner.txt"),
+            "inner\n");
+
+      boolean ok = true;
+
+      for (int mode = 0; mode < 2; mode++)
+        {
+          String plain = tokenize(new File(dir,"main.txt").getPath(),mode == 0,false);
+          String lookahead = tokenize(new File(dir,"main.txt").getPath(),mode == 0,true);
+
+          System.out.println((mode == 0 ? "seamless" : "non-seamless")+":");
+          System.out.print(plain);
+
+          if (!plain.equals(lookahead))
+            {
+              ok = false;
+              System.out.println("*** LAStreamTokenizer differs:");
+              System.out.print(lookahead);
+            }
+        }
+
+      System.out.println("LA and plain locations agree: "+ok);
+    }
+
+  /**
+   * Returns the tokens of the specified file with their locations and the
+   * locations of their source positions, including files as directed by
+   * <tt>include "file"</tt>.
+   */
+  static String tokenize (String file, boolean seamless, boolean lookahead) throws IOException
+    {
+      IncludeReader reader = new IncludeReader(file);
+      reader.setSeamless(seamless);
+      reader.setSourceMap(new SourceMap());
+
+      AbstractStreamTokenizer tokenizer = lookahead ? new LAStreamTokenizer(reader)
+                                                    : new StreamTokenizer(reader);
+      StringBuilder out = new StringBuilder();
+      boolean including = false;
+
+      while (tokenizer.nextToken() != AbstractStreamTokenizer.TT_EOF)
+        {
+          String name = tokenizer.tokenStart().toString();
+          name = name.substring(name.lastIndexOf(File.separatorChar)+1);
+
+          out.append("  ").append(tokenizer.ttype).append(' ').append(tokenizer.sval)
+             .append(" at ").append(name)
+             .append(" (").append(at(reader.getSourceMap(),tokenizer.tokenStartPosition())).append(")\n");
+
+          if (including && tokenizer.sval != null)
+            reader.include(new File(new File(file).getParent(),tokenizer.sval).getPath());
+
+          including = "include".equals(tokenizer.sval);
+        }
+
+      return out.toString();
+    }
+
+  static String at (SourceMap map, long position)
+    {
+      if (position < 0)
+        return "unmapped";
+
+      return map.line(position)+":"+map.column(position);
+    }
+
+  static void write (File file, String contents) throws IOException
+    {
+      FileWriter writer = new FileWriter(file);
+      writer.write(contents);
+      writer.close();
+    }
+}
@@ -0,0 +1,59 @@
+import hlt.language.io.IncludeReader;
+import hlt.language.io.VirtualSourceRegistry;
+import hlt.language.io.CircularInclusionException;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Includes a source held in memory, unregisters it while it is being read,
+ * and checks that registering and including it again once it has been read
+ * does not fail as a circular inclusion.
+ */
+public class VirtualSourceTest
+{
+  public static void main (String[] args) throws IOException
+    {
+      File dir = new File(System.getProperty("java.io.tmpdir"),"VirtualSourceTest");
+      dir.mkdirs();
+
+      File main = new File(dir,"main.txt");
+      FileWriter writer = new FileWriter(main);
+      writer.write("main\n");
+      writer.close();
+
+      VirtualSourceRegistry registry = new VirtualSourceRegistry();
+      registry.register("m","first\n");
+
+      IncludeReader reader = new IncludeReader(main.getPath());
+      reader.setVirtualSources(registry);
+      reader.include("m");
+      registry.unregister("m");
+      System.out.print(readAll(reader));
+
+      registry.register("m","second\n");
+
+      try
+        {
+          reader.include("m");
+          System.out.print(readAll(reader));
+          System.out.println("Included again after unregistering: true");
+        }
+      catch (CircularInclusionException e)
+        {
+          System.out.println("Included again after unregistering: false ("+e.getMessage()+")");
+        }
+    }
+
+  static String readAll (IncludeReader reader) throws IOException
+    {
+      StringBuilder out = new StringBuilder();
+      int c;
+
+      while ((c = reader.read()) != -1)
+        out.append((char)c);
+
+      return out.toString();
+    }
+}